@@ -0,0 +1,42 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with 1, 4, 16 and 64 concurrent callers, reporting
+ * throughput and the per-operation allocation rate.
+ *
+ * <pre>
+ * mvn -pl benchmarks -am package
+ * java -jar benchmarks/target/vendingmachine-benchmarks.jar [benchmark regexp]
+ * </pre>
+ */
+public final class BenchmarkRunner {
+
+    private static final int[] CALLERS = {1, 4, 16, 64};
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final String include = args.length > 0 ? args[0] : OrderPathBenchmark.class.getSimpleName();
+        for (int callers : CALLERS) {
+            final Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(callers)
+                    .addProfiler(GCProfiler.class)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.benchmarks;
+
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.test.AbstractDataBrokerTest;
+
+/**
+ * Creates the in-memory {@link DataBroker} the MD-SAL binding tests run
+ * against: the real binding and DOM brokers on top of an in-memory datastore,
+ * with the schema of every YANG module found on the class path.
+ */
+public final class InMemoryDataBroker extends AbstractDataBrokerTest {
+
+    private InMemoryDataBroker() {
+    }
+
+    public static DataBroker create() throws Exception {
+        final InMemoryDataBroker broker = new InMemoryDataBroker();
+        broker.setup();
+        return broker.getDataBroker();
+    }
+}
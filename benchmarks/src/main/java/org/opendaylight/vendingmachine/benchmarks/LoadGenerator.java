@@ -0,0 +1,412 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.opendaylight.vendingmachine.impl.ProductInventory;
+import org.opendaylight.vendingmachine.impl.VendingmachineProvider;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MachineId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.RefullItemInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.RefullItemInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.JdkFutureAdapters;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Open-loop load generator driving make-order and refull-item through the full
+ * provider, started against an in-memory data broker.
+ *
+ * <p>Orders are sent at the target arrival rate whether or not earlier orders
+ * completed, the way independent clients behave. Their latency is measured
+ * from the time each order was due to be sent, so a provider that stalls the
+ * generator is charged for the whole stall. Each machine is refilled at a fixed
+ * cadence while orders run.
+ *
+ * <p>After the run the generator stops sending, waits for all answers and
+ * checks that the provider is idle again: no order in flight, none queued and
+ * no task waiting for a shard. An order path that forgets to release a machine
+ * on some failure path shows up there and fails the run. With {@code --soak}
+ * a report is also printed for every report interval, so a slow drift is seen
+ * long before the end of the run.
+ *
+ * <pre>
+ * mvn -pl benchmarks -am verify -Pload-test -Dload.args="--rate=500 --duration=60"
+ * </pre>
+ *
+ * Options, with their defaults: {@code --mode=serialized|concurrent},
+ * {@code --rate=100} orders per second, {@code --duration=60} seconds,
+ * {@code --arrivals=uniform|poisson}, {@code --machines=1},
+ * {@code --mix=snacks:1,juice:1,water:1,sandwich:1}, {@code --items=1},
+ * {@code --refill-interval=1000} milliseconds, 0 for no refills,
+ * {@code --refill-quantity=100}, {@code --queue-capacity=0},
+ * {@code --max-orders-in-flight=10}, {@code --dispense-time=2} milliseconds,
+ * {@code --soak}, {@code --report-interval=60} seconds,
+ * {@code --drain-timeout=30} seconds and {@code --seed=1}.
+ */
+public final class LoadGenerator {
+
+    private final Settings settings;
+    private final VendingmachineProvider provider;
+    private final List<MakeOrderInput[]> ordersPerMachine = new ArrayList<>();
+    private final List<RefullItemInput> refills = new ArrayList<>();
+    private final double[] cumulativeMix;
+    private final Random random;
+
+    private final LoadReport total = new LoadReport();
+    private volatile LoadReport window = new LoadReport();
+    private final AtomicLong outstanding = new AtomicLong();
+
+    LoadGenerator(final Settings settings, final VendingmachineProvider provider) {
+        this.settings = settings;
+        this.provider = provider;
+        this.random = new Random(settings.seed);
+
+        cumulativeMix = new double[ProductInventory.PRODUCTS.size()];
+        double sum = 0;
+        for (int i = 0; i < cumulativeMix.length; i++) {
+            sum += settings.mix[i];
+            cumulativeMix[i] = sum;
+        }
+
+        for (int m = 0; m < settings.machines; m++) {
+            // a single machine is the default one, reached without a machine-id
+            final MachineId machineId = settings.machines == 1 ? null : new MachineId("load-" + m);
+            final MakeOrderInput[] orders = new MakeOrderInput[ProductInventory.PRODUCTS.size()];
+            for (int p = 0; p < orders.length; p++) {
+                orders[p] = new MakeOrderInputBuilder().setMachineId(machineId)
+                        .setItemtype(ProductInventory.PRODUCTS.get(p)).setNumberofitems(settings.items).build();
+            }
+            ordersPerMachine.add(orders);
+            refills.add(new RefullItemInputBuilder().setMachineId(machineId)
+                    .setQuantityofproductprovide(settings.refillQuantity).build());
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Settings settings = Settings.parse(args);
+
+        final VendingmachineProvider provider = new VendingmachineProvider();
+        provider.setConcurrentOrders(settings.concurrent);
+        provider.setOrderQueueCapacity(settings.queueCapacity);
+        provider.setMaxOrdersInFlight(settings.maxOrdersInFlight);
+        for (Class<? extends VendingProducts> product : ProductInventory.PRODUCTS) {
+            provider.setDispenseTime(product, settings.dispenseTime);
+        }
+
+        try (ProviderFixture fixture = new ProviderFixture(InMemoryDataBroker.create(), provider)) {
+            new LoadGenerator(settings, provider).run();
+        }
+    }
+
+    void run() throws Exception {
+        // machines of the fleet are created by their first refill
+        for (RefullItemInput refill : refills) {
+            provider.refullItem(refill).get();
+        }
+        final long ordersMadeBefore = provider.getOrdersMade();
+
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("load-timer-%d").setDaemon(true).build());
+        final long start = System.nanoTime();
+        try {
+            if (settings.refillInterval > 0) {
+                timer.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        refill();
+                    }
+                }, settings.refillInterval, settings.refillInterval, TimeUnit.MILLISECONDS);
+            }
+            if (settings.soak) {
+                timer.scheduleAtFixedRate(new Runnable() {
+                    private long windowStart = start;
+
+                    @Override
+                    public void run() {
+                        final long now = System.nanoTime();
+                        final LoadReport finished = window;
+                        window = new LoadReport();
+                        finished.print(System.out, "window at " + TimeUnit.NANOSECONDS.toSeconds(now - start) + " s",
+                                now - windowStart);
+                        printGauges();
+                        windowStart = now;
+                    }
+                }, settings.reportInterval, settings.reportInterval, TimeUnit.SECONDS);
+            }
+
+            sendOrders(start, start + TimeUnit.SECONDS.toNanos(settings.duration));
+        } finally {
+            timer.shutdownNow();
+        }
+
+        final boolean answered = awaitIdle(settings.drainTimeout);
+        total.print(System.out, "total", System.nanoTime() - start);
+        printGauges();
+        checkIdle(answered, provider.getOrdersMade() - ordersMadeBefore);
+    }
+
+    private void sendOrders(final long start, final long end) {
+        final double meanPeriodNanos = 1e9 / settings.rate;
+        double intended = start;
+        while (intended < end) {
+            final long due = (long) intended;
+            long now = System.nanoTime();
+            while (now < due) {
+                LockSupport.parkNanos(due - now);
+                now = System.nanoTime();
+            }
+            sendOrder(due);
+            intended += settings.poisson ? -Math.log(1 - random.nextDouble()) * meanPeriodNanos : meanPeriodNanos;
+        }
+    }
+
+    private void sendOrder(final long due) {
+        final MakeOrderInput order = ordersPerMachine.get(random.nextInt(ordersPerMachine.size()))[pickProduct()];
+        final LoadReport report = window;
+        outstanding.incrementAndGet();
+        try {
+            Futures.addCallback(JdkFutureAdapters.listenInPoolThread(provider.makeOrder(order)),
+                    new FutureCallback<RpcResult<Void>>() {
+                        @Override
+                        public void onSuccess(final RpcResult<Void> result) {
+                            final long latency = System.nanoTime() - due;
+                            total.orderCompleted(latency, result);
+                            report.orderCompleted(latency, result);
+                            outstanding.decrementAndGet();
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable t) {
+                            orderFailed(report, due, t);
+                        }
+                    }, MoreExecutors.directExecutor());
+        } catch (RuntimeException e) {
+            orderFailed(report, due, e);
+        }
+    }
+
+    private void orderFailed(final LoadReport report, final long due, final Throwable cause) {
+        final long latency = System.nanoTime() - due;
+        total.orderFailed(latency, cause);
+        report.orderFailed(latency, cause);
+        outstanding.decrementAndGet();
+    }
+
+    private void refill() {
+        for (RefullItemInput refill : refills) {
+            final long sent = System.nanoTime();
+            final LoadReport report = window;
+            Futures.addCallback(JdkFutureAdapters.listenInPoolThread(provider.refullItem(refill)),
+                    new FutureCallback<RpcResult<Void>>() {
+                        @Override
+                        public void onSuccess(final RpcResult<Void> result) {
+                            total.refillCompleted(System.nanoTime() - sent, result.isSuccessful());
+                            report.refillCompleted(System.nanoTime() - sent, result.isSuccessful());
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable t) {
+                            total.refillCompleted(System.nanoTime() - sent, false);
+                            report.refillCompleted(System.nanoTime() - sent, false);
+                        }
+                    }, MoreExecutors.directExecutor());
+        }
+    }
+
+    private int pickProduct() {
+        final double pick = random.nextDouble() * cumulativeMix[cumulativeMix.length - 1];
+        for (int i = 0; i < cumulativeMix.length - 1; i++) {
+            if (pick < cumulativeMix[i]) {
+                return i;
+            }
+        }
+        return cumulativeMix.length - 1;
+    }
+
+    /**
+     * Waits for every order to be answered and for the provider to go idle.
+     *
+     * @return true if every order was answered in time
+     */
+    private boolean awaitIdle(final long timeoutSeconds) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        while (System.nanoTime() < deadline) {
+            if (outstanding.get() == 0 && isProviderIdle()) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return outstanding.get() == 0;
+    }
+
+    private boolean isProviderIdle() {
+        return provider.getOrdersInFlight() == 0 && provider.getOrderQueueDepth() == 0
+                && provider.getExecutorQueueDepth() == 0;
+    }
+
+    private void checkIdle(final boolean answered, final long ordersMade) {
+        final List<String> leaks = new ArrayList<>();
+        if (!answered) {
+            leaks.add(outstanding.get() + " orders never answered");
+        }
+        if (!isProviderIdle()) {
+            leaks.add("provider not idle after the run");
+        }
+        if (ordersMade != total.getOrdersMade()) {
+            leaks.add("provider counted " + ordersMade + " orders made, clients saw " + total.getOrdersMade());
+        }
+        if (!leaks.isEmpty()) {
+            throw new IllegalStateException("Load run left the provider in a bad state: " + leaks);
+        }
+    }
+
+    private void printGauges() {
+        System.out.printf("   orders-in-flight %d  order-queue-depth %d  executor-queue-depth %d  unanswered %d%n",
+                provider.getOrdersInFlight(), provider.getOrderQueueDepth(), provider.getExecutorQueueDepth(),
+                outstanding.get());
+    }
+
+    /**
+     * Command line options of a run.
+     */
+    static final class Settings {
+        boolean concurrent;
+        double rate = 100;
+        long duration = 60;
+        boolean poisson;
+        int machines = 1;
+        final double[] mix = new double[ProductInventory.PRODUCTS.size()];
+        long items = 1;
+        long refillInterval = 1000;
+        long refillQuantity = 100;
+        long queueCapacity;
+        long maxOrdersInFlight = 10;
+        long dispenseTime = 2;
+        boolean soak;
+        long reportInterval = 60;
+        long drainTimeout = 30;
+        long seed = 1;
+
+        Settings() {
+            Arrays.fill(mix, 1);
+        }
+
+        static Settings parse(final String[] args) {
+            final Settings settings = new Settings();
+            for (String arg : args) {
+                if (!arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Unexpected argument " + arg);
+                }
+                final int eq = arg.indexOf('=');
+                final String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+                final String value = eq < 0 ? "true" : arg.substring(eq + 1);
+                settings.set(name, value);
+            }
+            double weights = 0;
+            for (double weight : settings.mix) {
+                weights += weight;
+            }
+            if (settings.rate <= 0 || settings.machines < 1 || weights <= 0) {
+                throw new IllegalArgumentException("--rate, --machines and the --mix weights must be positive");
+            }
+            return settings;
+        }
+
+        private void set(final String name, final String value) {
+            switch (name) {
+            case "mode":
+                concurrent = "concurrent".equals(value);
+                break;
+            case "rate":
+                rate = Double.parseDouble(value);
+                break;
+            case "duration":
+                duration = Long.parseLong(value);
+                break;
+            case "arrivals":
+                poisson = "poisson".equals(value);
+                break;
+            case "machines":
+                machines = Integer.parseInt(value);
+                break;
+            case "mix":
+                parseMix(value);
+                break;
+            case "items":
+                items = Long.parseLong(value);
+                break;
+            case "refill-interval":
+                refillInterval = Long.parseLong(value);
+                break;
+            case "refill-quantity":
+                refillQuantity = Long.parseLong(value);
+                break;
+            case "queue-capacity":
+                queueCapacity = Long.parseLong(value);
+                break;
+            case "max-orders-in-flight":
+                maxOrdersInFlight = Long.parseLong(value);
+                break;
+            case "dispense-time":
+                dispenseTime = Long.parseLong(value);
+                break;
+            case "soak":
+                soak = Boolean.parseBoolean(value);
+                break;
+            case "report-interval":
+                reportInterval = Long.parseLong(value);
+                break;
+            case "drain-timeout":
+                drainTimeout = Long.parseLong(value);
+                break;
+            case "seed":
+                seed = Long.parseLong(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option --" + name);
+            }
+        }
+
+        /**
+         * @param value comma-separated product:weight pairs, products left out
+         *        are not ordered
+         */
+        private void parseMix(final String value) {
+            Arrays.fill(mix, 0);
+            for (String entry : value.split(",")) {
+                final String[] pair = entry.split(":");
+                mix[productIndex(pair[0].trim())] = pair.length > 1 ? Double.parseDouble(pair[1]) : 1;
+            }
+        }
+
+        private static int productIndex(final String name) {
+            for (int i = 0; i < ProductInventory.PRODUCTS.size(); i++) {
+                if (ProductInventory.PRODUCTS.get(i).getSimpleName().equalsIgnoreCase(name)) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("Unknown product " + name);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.benchmarks;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendaylight.vendingmachine.impl.LatencyHistogram;
+import org.opendaylight.yangtools.yang.common.RpcError;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+
+/**
+ * Outcome of the calls made during one load run, or one window of a soak run:
+ * latency quantiles of orders and refills, and the orders turned down, keyed
+ * by the error-tag and app-tag of their first error.
+ */
+public final class LoadReport {
+
+    private final LatencyHistogram orderLatency = new LatencyHistogram();
+    private final LatencyHistogram refillLatency = new LatencyHistogram();
+    private final AtomicLong ordersMade = new AtomicLong();
+    private final AtomicLong refillsFailed = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> rejections = new ConcurrentHashMap<>();
+
+    /**
+     * @param latencyNanos time from the intended send time of the order, not
+     *        from the time it was actually sent, so a stalled provider shows in
+     *        the latency of all the orders it held up
+     */
+    public void orderCompleted(final long latencyNanos, final RpcResult<Void> result) {
+        orderLatency.record(latencyNanos);
+        if (result.isSuccessful()) {
+            ordersMade.incrementAndGet();
+        } else {
+            reject(keyOf(result));
+        }
+    }
+
+    public void orderFailed(final long latencyNanos, final Throwable cause) {
+        orderLatency.record(latencyNanos);
+        reject("exception/" + cause.getClass().getSimpleName());
+    }
+
+    public void refillCompleted(final long latencyNanos, final boolean successful) {
+        refillLatency.record(latencyNanos);
+        if (!successful) {
+            refillsFailed.incrementAndGet();
+        }
+    }
+
+    public long getOrders() {
+        return orderLatency.getCount();
+    }
+
+    public long getOrdersMade() {
+        return ordersMade.get();
+    }
+
+    public long getRejections() {
+        long total = 0;
+        for (AtomicLong count : rejections.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    public void print(final PrintStream out, final String title, final long elapsedNanos) {
+        final double seconds = Math.max(1, elapsedNanos) / 1e9;
+        out.printf("== %s: %d orders in %.1f s (%.1f/s), %d made, %d turned down%n", title, getOrders(), seconds,
+                getOrders() / seconds, getOrdersMade(), getRejections());
+        printLatency(out, "make-order", orderLatency);
+        printLatency(out, "refull-item", refillLatency);
+        if (refillsFailed.get() > 0) {
+            out.printf("   refull-item failed: %d%n", refillsFailed.get());
+        }
+        for (Map.Entry<String, AtomicLong> rejection : new TreeMap<>(rejections).entrySet()) {
+            out.printf("   rejected %-40s %d%n", rejection.getKey(), rejection.getValue().get());
+        }
+    }
+
+    private void reject(final String key) {
+        AtomicLong count = rejections.get(key);
+        if (count == null) {
+            final AtomicLong created = new AtomicLong();
+            count = rejections.putIfAbsent(key, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private static String keyOf(final RpcResult<?> result) {
+        if (result.getErrors().isEmpty()) {
+            return "no-error";
+        }
+        final RpcError error = result.getErrors().iterator().next();
+        return error.getApplicationTag() != null ? error.getTag() + "/" + error.getApplicationTag() : error.getTag();
+    }
+
+    private static void printLatency(final PrintStream out, final String rpc, final LatencyHistogram latency) {
+        if (latency.getCount() == 0) {
+            return;
+        }
+        out.printf("   %-12s p50 %8d us  p99 %8d us  p999 %8d us  max %8d us  (%d calls)%n", rpc,
+                micros(latency.getQuantileNanos(0.5)), micros(latency.getQuantileNanos(0.99)),
+                micros(latency.getQuantileNanos(0.999)), micros(latency.getMaxNanos()), latency.getCount());
+    }
+
+    private static long micros(final long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.api.ReadWriteTransaction;
+import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
+import org.opendaylight.controller.md.sal.common.api.data.TransactionCommitFailedException;
+import org.opendaylight.vendingmachine.impl.ProductInventory;
+import org.opendaylight.vendingmachine.impl.VendingmachineProvider;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MachineId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.RefullItemInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.RefullItemInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Vendingmachine;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Vendingmachine.VendingmachineStatus;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingmachineBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Water;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Optional;
+
+/**
+ * Throughput of the provider's order path against an in-memory data broker.
+ *
+ * <p>The {@code contended} mix sends every caller to the same product of the
+ * default machine. In the {@code uncontended} mix each caller orders from its
+ * own machine of the fleet. Run through {@link BenchmarkRunner} to cover 1, 4,
+ * 16 and 64 callers with allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderPathBenchmark {
+
+    /**
+     * Largest quantity refull-item accepts; enough stock for any run.
+     */
+    private static final long FULL = 4294967295L;
+
+    @Param({"serialized", "concurrent"})
+    public String mode;
+
+    @Param({"contended", "uncontended"})
+    public String productMix;
+
+    DataBroker dataBroker;
+    VendingmachineProvider provider;
+    private ProviderFixture fixture;
+    private final AtomicInteger callers = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void startProvider() throws Exception {
+        dataBroker = InMemoryDataBroker.create();
+        fixture = new ProviderFixture(dataBroker, "concurrent".equals(mode));
+        provider = fixture.getProvider();
+        provider.refullItem(new RefullItemInputBuilder().setQuantityofproductprovide(FULL).build()).get();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopProvider() throws Exception {
+        fixture.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        MakeOrderInput order;
+        RefullItemInput refill;
+
+        @Setup(Level.Trial)
+        public void setup(final OrderPathBenchmark benchmark) throws Exception {
+            final int caller = benchmark.callers.getAndIncrement();
+            final MakeOrderInputBuilder orderBuilder = new MakeOrderInputBuilder().setNumberofitems(1L);
+            final RefullItemInputBuilder refillBuilder = new RefullItemInputBuilder().setQuantityofproductprovide(FULL);
+            if ("contended".equals(benchmark.productMix)) {
+                orderBuilder.setItemtype(Water.class);
+            } else {
+                final MachineId machineId = new MachineId("benchmark-" + caller);
+                orderBuilder.setMachineId(machineId)
+                        .setItemtype(ProductInventory.PRODUCTS.get(caller % ProductInventory.PRODUCTS.size()));
+                refillBuilder.setMachineId(machineId);
+            }
+            order = orderBuilder.build();
+            refill = refillBuilder.build();
+            benchmark.provider.refullItem(refill).get();
+        }
+    }
+
+    @Benchmark
+    public RpcResult<Void> makeOrder(final Caller caller) throws Exception {
+        return provider.makeOrder(caller.order).get();
+    }
+
+    @Benchmark
+    public RpcResult<Void> refullItem(final Caller caller) throws Exception {
+        return provider.refullItem(caller.refill).get();
+    }
+
+    /**
+     * The datastore round-trip the serialized order mode pays twice per order:
+     * read the machine status and commit a new one.
+     */
+    @Benchmark
+    public boolean statusReadCommit() throws Exception {
+        final ReadWriteTransaction tx = dataBroker.newReadWriteTransaction();
+        final Optional<Vendingmachine> vendingmachine = tx.read(LogicalDatastoreType.OPERATIONAL,
+                VendingmachineProvider.VENDINGMACHINE_IID).checkedGet();
+        final VendingmachineStatus status = vendingmachine.isPresent()
+                && vendingmachine.get().getVendingmachineStatus() == VendingmachineStatus.Empty
+                ? VendingmachineStatus.Availability : VendingmachineStatus.Empty;
+        tx.merge(LogicalDatastoreType.OPERATIONAL, VendingmachineProvider.VENDINGMACHINE_IID,
+                new VendingmachineBuilder().setVendingmachineStatus(status).build());
+        try {
+            tx.submit().checkedGet();
+            return true;
+        } catch (TransactionCommitFailedException e) {
+            // optimistic lock failures are part of the contended cost
+            return false;
+        }
+    }
+}
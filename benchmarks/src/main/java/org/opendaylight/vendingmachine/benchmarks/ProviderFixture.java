@@ -0,0 +1,71 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.benchmarks;
+
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.sal.binding.api.BindingAwareBroker;
+import org.opendaylight.controller.sal.binding.api.BindingAwareBroker.ProviderContext;
+import org.opendaylight.controller.sal.binding.api.NotificationProviderService;
+import org.opendaylight.vendingmachine.impl.VendingmachineProvider;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingmachineService;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * A {@link VendingmachineProvider} started against an in-memory data broker.
+ * The notification service and RPC registry are stubs that do not record their
+ * invocations, so they neither cost time nor leak memory in long runs.
+ */
+public final class ProviderFixture implements AutoCloseable {
+
+    private final VendingmachineProvider provider;
+
+    public ProviderFixture(final DataBroker dataBroker, final boolean concurrentOrders) {
+        this(dataBroker, unlimited(concurrentOrders));
+    }
+
+    /**
+     * Starts a provider configured by the caller, with its settings untouched.
+     */
+    public ProviderFixture(final DataBroker dataBroker, final VendingmachineProvider provider) {
+        this.provider = provider;
+        provider.onSessionInitiated(session(dataBroker));
+    }
+
+    public VendingmachineProvider getProvider() {
+        return provider;
+    }
+
+    @Override
+    public void close() throws Exception {
+        provider.close();
+    }
+
+    private static VendingmachineProvider unlimited(final boolean concurrentOrders) {
+        final VendingmachineProvider provider = new VendingmachineProvider();
+        provider.setConcurrentOrders(concurrentOrders);
+        // the in-flight limit is not what is measured
+        provider.setMaxOrdersInFlight(Integer.MAX_VALUE);
+        return provider;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ProviderContext session(final DataBroker dataBroker) {
+        final ProviderContext session = mock(ProviderContext.class, withSettings().stubOnly());
+        when(session.getSALService(DataBroker.class)).thenReturn(dataBroker);
+        when(session.getSALService(NotificationProviderService.class))
+                .thenReturn(mock(NotificationProviderService.class, withSettings().stubOnly()));
+        when(session.addRpcImplementation(eq(VendingmachineService.class), any(VendingmachineService.class)))
+                .thenReturn(mock(BindingAwareBroker.RpcRegistration.class, withSettings().stubOnly()));
+        return session;
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Audit trail of the stock movements of the fleet: orders made, orders that
+ * failed after taking their items out of stock, and refills.
+ *
+ * <p>Recording an event only claims a slot of a preallocated ring and copies a
+ * few fields into it, without locking or allocating, so events are recorded on
+ * the order path itself. A single background thread drains the ring to a
+ * compact binary file, which is rolled over to numbered files when it reaches
+ * its size limit. When the ring is full, events are either dropped and counted
+ * or the recording thread waits for room, as configured.
+ *
+ * <p>A file starts with the magic number 0x564d4131 and holds one record per
+ * event: its type, the milliseconds since the previous record of the file as a
+ * varint, the machine-id in modified UTF-8, the product slot and the number of
+ * items as a zigzag varint, negative for a refill that lowered the stock.
+ */
+public class AuditTrail implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AuditTrail.class);
+
+    public enum EventType {
+        ORDER_MADE,
+        /**
+         * The order had its items reserved but was not dispensed, the items were
+         * put back.
+         */
+        ORDER_FAILED,
+        REFILLED
+    }
+
+    /**
+     * Told about every event of a file, in file order.
+     */
+    public interface EventHandler {
+        void event(long timeMillis, EventType type, String machineId, Class<? extends VendingProducts> product,
+                long items);
+    }
+
+    static final int MAGIC = 0x564d4131;
+    static final String FILE_NAME = "audit.log";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final EventType[] EVENT_TYPES = EventType.values();
+
+    private final File directory;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final boolean blockWhenFull;
+
+    /*
+     * A slot may be written for position p once its sequence is p, and read
+     * once it is p + 1; the reader then hands it to position p + capacity.
+     */
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final long[] times;
+    private final byte[] types;
+    private final String[] machineIds;
+    private final byte[] products;
+    private final long[] items;
+    // set to Long.MAX_VALUE by the exiting writer, so that no position can be claimed any more
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Thread writer;
+    private volatile boolean closed;
+
+    // only touched by the writer thread
+    private long head;
+    private DataOutputStream out;
+    private long lastTimeMillis;
+    private boolean failed;
+    private boolean unflushed;
+
+    /**
+     * @param capacity number of events the ring holds, rounded up to a power
+     *        of two
+     * @param maxFileBytes size at which the file is rolled over
+     * @param maxFiles number of files kept, the current one included
+     * @param blockWhenFull whether recording waits for room in a full ring
+     *        rather than drop the event
+     */
+    public AuditTrail(final File directory, final int capacity, final long maxFileBytes, final int maxFiles,
+            final boolean blockWhenFull) throws IOException {
+        this.directory = directory;
+        // DataOutputStream counts the bytes written in an int
+        this.maxFileBytes = Math.max(1, Math.min(maxFileBytes, Integer.MAX_VALUE));
+        this.maxFiles = Math.max(1, maxFiles);
+        this.blockWhenFull = blockWhenFull;
+
+        final int size = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 30)) * 2 - 1);
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        times = new long[size];
+        types = new byte[size];
+        machineIds = new String[size];
+        products = new byte[size];
+        items = new long[size];
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        // the trail of the previous run becomes audit.log.1
+        shiftFiles();
+        openFile();
+
+        writer = new ThreadFactoryBuilder().setNameFormat("vendingmachine-audit-%d").setDaemon(true).build()
+                .newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                });
+        writer.start();
+    }
+
+    /**
+     * Records an event. Does not allocate; blocks only if the ring is full and
+     * the trail was told to block rather than drop.
+     */
+    public void record(final EventType type, final String machineId, final Class<? extends VendingProducts> product,
+            final long itemCount) {
+        if (closed) {
+            dropped.incrementAndGet();
+            return;
+        }
+        final long timeMillis = System.currentTimeMillis();
+        long position;
+        int slot;
+        while (true) {
+            position = tail.get();
+            slot = (int) position & mask;
+            final long sequence = sequences.get(slot);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // the slot still holds the event of the previous lap: the ring is full
+                // nothing drains a closed trail, waiting for room would never end
+                if (!blockWhenFull || closed) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                // the writer may be parked for a while if the ring filled up at once
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+            }
+            // else another thread claimed the position first
+        }
+
+        times[slot] = timeMillis;
+        types[slot] = (byte) type.ordinal();
+        machineIds[slot] = machineId;
+        products[slot] = (byte) ProductInventory.PRODUCTS.indexOf(product);
+        items[slot] = itemCount;
+        sequences.lazySet(slot, position + 1);
+    }
+
+    /**
+     * @return events dropped because the ring was full or could not be written
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void drain() {
+        long idleParkNanos = IDLE_PARK_NANOS;
+        while (true) {
+            final int slot = (int) head & mask;
+            if (sequences.get(slot) == head + 1) {
+                write(slot);
+                machineIds[slot] = null;
+                sequences.lazySet(slot, head + mask + 1);
+                head++;
+                idleParkNanos = IDLE_PARK_NANOS;
+            } else if (closed) {
+                break;
+            } else {
+                if (unflushed) {
+                    flush();
+                }
+                // an idle trail backs off, a recorder finding the ring full wakes it up
+                LockSupport.parkNanos(idleParkNanos);
+                idleParkNanos = Math.min(idleParkNanos * 2, MAX_IDLE_PARK_NANOS);
+            }
+        }
+        // events claimed by recorders that passed the closed check, but not written
+        dropped.addAndGet(tail.getAndSet(Long.MAX_VALUE) - head);
+        flush();
+        closeFile();
+    }
+
+    private void write(final int slot) {
+        if (failed) {
+            dropped.incrementAndGet();
+            return;
+        }
+        try {
+            if (out.size() >= maxFileBytes) {
+                rollOver();
+            }
+            out.writeByte(types[slot]);
+            InventoryFile.writeVarint(out, Math.max(0, times[slot] - lastTimeMillis));
+            lastTimeMillis = times[slot];
+            out.writeUTF(machineIds[slot]);
+            out.writeByte(products[slot]);
+            InventoryFile.writeVarint(out, (items[slot] << 1) ^ (items[slot] >> 63));
+            unflushed = true;
+        } catch (IOException e) {
+            // recording goes on, so that threads blocked on a full ring are released
+            LOG.error("Failed to write the audit trail in {}, events are dropped from now on", directory, e);
+            failed = true;
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void flush() {
+        unflushed = false;
+        if (!failed) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                LOG.error("Failed to write the audit trail in {}, events are dropped from now on", directory, e);
+                failed = true;
+            }
+        }
+    }
+
+    private void openFile() throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(directory, FILE_NAME)), BUFFER_SIZE));
+        out.writeInt(MAGIC);
+        lastTimeMillis = 0;
+    }
+
+    private void rollOver() throws IOException {
+        out.close();
+        shiftFiles();
+        openFile();
+    }
+
+    /**
+     * Moves audit.log to audit.log.1, shifting older files up and deleting the
+     * oldest.
+     */
+    private void shiftFiles() throws IOException {
+        Files.deleteIfExists(fileNumbered(maxFiles - 1).toPath());
+        for (int i = maxFiles - 2; i >= 0; i--) {
+            final File file = fileNumbered(i);
+            if (file.exists()) {
+                Files.move(file.toPath(), fileNumbered(i + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private File fileNumbered(final int number) {
+        return new File(directory, number == 0 ? FILE_NAME : FILE_NAME + "." + number);
+    }
+
+    private void closeFile() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close the audit trail in {}", directory, e);
+        }
+    }
+
+    /**
+     * Reads every event of an audit file.
+     *
+     * @return number of events read
+     */
+    public static long read(final File file, final EventHandler handler) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not an audit file");
+            }
+            long events = 0;
+            long timeMillis = 0;
+            while (true) {
+                final int type = in.read();
+                if (type < 0) {
+                    return events;
+                }
+                try {
+                    timeMillis += InventoryFile.readVarint(in);
+                    final String machineId = in.readUTF();
+                    final int product = in.readUnsignedByte();
+                    final long zigzag = InventoryFile.readVarint(in);
+                    if (type >= EVENT_TYPES.length || product >= ProductInventory.PRODUCTS.size()) {
+                        throw new IOException(file + ": corrupt record " + (events + 1));
+                    }
+                    handler.event(timeMillis, EVENT_TYPES[type], machineId, ProductInventory.PRODUCTS.get(product),
+                            (zigzag >>> 1) ^ -(zigzag & 1));
+                    events++;
+                } catch (EOFException e) {
+                    // the last record of a trail that was not closed cleanly
+                    return events;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the events recorded so far and stops the writer. Events recorded
+     * from now on are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
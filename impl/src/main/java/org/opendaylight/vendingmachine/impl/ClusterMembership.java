@@ -0,0 +1,221 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.api.ReadOnlyTransaction;
+import org.opendaylight.controller.md.sal.binding.api.WriteTransaction;
+import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Cluster;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.cluster.Member;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.cluster.MemberBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.cluster.MemberKey;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Membership of this node in the cluster member list of the operational
+ * datastore, and the live members as seen from this node.
+ *
+ * <p>Every heartbeat interval the node bumps its own heartbeat counter and
+ * reads the list back. A member is live while its counter keeps moving, as
+ * observed on this node's own clock, so clock skew between nodes does not
+ * matter. A member that leaves cleanly removes its entry and is dropped at once.
+ * The listener is told about every change of the live members, on the
+ * membership thread, which it may also schedule its own work on.
+ */
+public class ClusterMembership implements AutoCloseable {
+
+    /**
+     * Told about the live members, sorted by node-id, whenever they change.
+     */
+    public interface Listener {
+        void membersChanged(List<String> liveMembers);
+    }
+
+    public static final InstanceIdentifier<Cluster> CLUSTER_IID = InstanceIdentifier.builder(Cluster.class).build();
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterMembership.class);
+
+    private final DataBroker dataBroker;
+    private final String nodeId;
+    private final long memberTimeoutNanos;
+    private final Listener listener;
+    private final InstanceIdentifier<Member> memberIid;
+    private final ScheduledExecutorService executor;
+
+    // only touched on the membership thread
+    private final Map<String, Observation> observations = new HashMap<>();
+    private long heartbeat;
+
+    private volatile List<String> liveMembers;
+
+    public ClusterMembership(final DataBroker dataBroker, final String nodeId, final long heartbeatIntervalMillis,
+            final long memberTimeoutMillis, final Listener listener) {
+        this.dataBroker = dataBroker;
+        this.nodeId = nodeId;
+        this.memberTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(memberTimeoutMillis);
+        this.listener = listener;
+        this.memberIid = CLUSTER_IID.child(Member.class, new MemberKey(nodeId));
+        // empty until the first heartbeat, which then always reports a change
+        this.liveMembers = ImmutableList.of();
+
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("vendingmachine-membership-%d").setDaemon(true).build());
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    heartbeat();
+                } catch (Exception e) {
+                    LOG.warn("Cluster heartbeat of {} failed", nodeId, e);
+                }
+            }
+        }, 0, heartbeatIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return the live members, this node included, sorted by node-id; empty
+     *         until this node's first heartbeat
+     */
+    public List<String> getLiveMembers() {
+        return liveMembers;
+    }
+
+    /**
+     * Runs {@code task} on the membership thread after {@code delayMillis}.
+     */
+    public void schedule(final Runnable task, final long delayMillis) {
+        executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Picks the owner of {@code key} by rendezvous hashing: the member scoring
+     * highest for the key. When a member fails only the keys it owned move,
+     * spread over the remaining members.
+     */
+    public static String ownerOf(final String key, final Collection<String> members) {
+        String owner = null;
+        long best = 0;
+        for (String member : members) {
+            final long score = mix(((long) member.hashCode() << 32) ^ (key.hashCode() & 0xffffffffL));
+            if (owner == null || score > best || (score == best && member.compareTo(owner) < 0)) {
+                owner = member;
+                best = score;
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreading every input bit over the result.
+     */
+    private static long mix(final long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private void heartbeat() throws Exception {
+        final WriteTransaction tx = dataBroker.newWriteOnlyTransaction();
+        tx.merge(LogicalDatastoreType.OPERATIONAL, memberIid, new MemberBuilder()
+                .setNodeId(nodeId).setHeartbeat(BigInteger.valueOf(++heartbeat)).build(), true);
+        tx.submit().checkedGet();
+
+        final ReadOnlyTransaction readTx = dataBroker.newReadOnlyTransaction();
+        final Optional<Cluster> cluster;
+        try {
+            cluster = readTx.read(LogicalDatastoreType.OPERATIONAL, CLUSTER_IID).checkedGet();
+        } finally {
+            readTx.close();
+        }
+
+        final long now = System.nanoTime();
+        final Map<String, BigInteger> heartbeats = new HashMap<>();
+        if (cluster.isPresent() && cluster.get().getMember() != null) {
+            for (Member member : cluster.get().getMember()) {
+                heartbeats.put(member.getNodeId(), member.getHeartbeat());
+            }
+        }
+        for (Iterator<String> it = observations.keySet().iterator(); it.hasNext();) {
+            if (!heartbeats.containsKey(it.next())) {
+                it.remove();
+            }
+        }
+
+        final TreeSet<String> live = new TreeSet<>();
+        live.add(nodeId);
+        for (Map.Entry<String, BigInteger> member : heartbeats.entrySet()) {
+            Observation observation = observations.get(member.getKey());
+            if (observation == null || !observation.heartbeat.equals(member.getValue())) {
+                observation = new Observation(member.getValue(), now);
+                observations.put(member.getKey(), observation);
+            }
+            if (now - observation.changedNanos < memberTimeoutNanos) {
+                live.add(member.getKey());
+            }
+        }
+
+        final List<String> members = ImmutableList.copyOf(live);
+        if (!members.equals(liveMembers)) {
+            LOG.info("Live members of the cluster are now {}", members);
+            liveMembers = members;
+            listener.membersChanged(members);
+        }
+    }
+
+    /**
+     * Stops the heartbeat and leaves the member list, so the other members take
+     * over this node's machines without waiting for the member timeout.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        final WriteTransaction tx = dataBroker.newWriteOnlyTransaction();
+        tx.delete(LogicalDatastoreType.OPERATIONAL, memberIid);
+        try {
+            tx.submit().checkedGet(1, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            LOG.warn("Failed to remove {} from the cluster members", nodeId, e);
+        }
+    }
+
+    private static final class Observation {
+        final BigInteger heartbeat;
+        final long changedNanos;
+
+        Observation(final BigInteger heartbeat, final long changedNanos) {
+            this.heartbeat = heartbeat;
+            this.changedNanos = changedNanos;
+        }
+    }
+}
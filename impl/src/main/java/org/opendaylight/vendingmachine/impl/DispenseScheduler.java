@@ -0,0 +1,34 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Dispenses the items of admitted orders. The items are already taken out of
+ * stock, a scheduler only decides when dispensing is done.
+ *
+ * <p>Implementations must not block the caller: dispense() is called from the
+ * order path and from shard threads.
+ */
+public interface DispenseScheduler extends AutoCloseable {
+
+    /**
+     * @return future completing once {@code items} items of {@code product} have
+     *         been dispensed by {@code machine}, failing if they never will be
+     */
+    ListenableFuture<Void> dispense(MachineContext machine, Class<? extends VendingProducts> product, long items);
+
+    /**
+     * Stops accepting dispenses. Dispenses already scheduled still complete.
+     */
+    @Override
+    void close();
+}
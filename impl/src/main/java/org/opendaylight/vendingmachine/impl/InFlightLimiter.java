@@ -0,0 +1,55 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking admission counter for orders that are in flight.
+ *
+ * <p>Unlike a {@link java.util.concurrent.Semaphore} the limit can be changed
+ * while permits are held: lowering it only stops new admissions until enough
+ * orders have finished.
+ */
+public class InFlightLimiter {
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+
+    public InFlightLimiter(final int limit) {
+        this.limit = limit;
+    }
+
+    public boolean tryAcquire() {
+        for (;;) {
+            final int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(final int limit) {
+        this.limit = limit;
+    }
+}
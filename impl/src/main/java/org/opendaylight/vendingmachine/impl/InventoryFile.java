@@ -0,0 +1,397 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.InventoryFormat;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+
+/**
+ * Reads and writes inventory files, the stock of many product slots, as
+ * described by the inventory-format typedef.
+ *
+ * <p>Both directions stream: a file is read one slot at a time and written one
+ * machine at a time, through fixed-size buffers, so the memory used does not
+ * depend on the size of the file.
+ */
+public final class InventoryFile {
+
+    /**
+     * Told about every product slot of a file, in file order.
+     */
+    public interface SlotHandler {
+        void slot(String machineId, Class<? extends VendingProducts> product, long stock) throws IOException;
+    }
+
+    /**
+     * Ignores every slot, for checking a file without applying it.
+     */
+    public static final SlotHandler IGNORE = new SlotHandler() {
+        @Override
+        public void slot(final String machineId, final Class<? extends VendingProducts> product, final long stock) {
+        }
+    };
+
+    /**
+     * A file that does not follow its format. Nothing is wrong with the file
+     * system.
+     */
+    public static class FormatException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FormatException(final String message) {
+            super(message);
+        }
+    }
+
+    static final int MAGIC = 0x564d4931;
+    static final String CSV_HEADER = "machine-id,product,number-in-stock";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_MACHINE_ID_LENGTH = 255;
+    private static final long MAX_STOCK = 0xffffffffL;
+    private static final Map<String, Class<? extends VendingProducts>> PRODUCTS_BY_NAME = new HashMap<>();
+    // in the order of ProductInventory.PRODUCTS
+    private static final String[] PRODUCT_NAMES = new String[ProductInventory.PRODUCTS.size()];
+
+    static {
+        for (int i = 0; i < PRODUCT_NAMES.length; i++) {
+            final Class<? extends VendingProducts> product = ProductInventory.PRODUCTS.get(i);
+            PRODUCT_NAMES[i] = nameOf(product);
+            PRODUCTS_BY_NAME.put(PRODUCT_NAMES[i], product);
+        }
+    }
+
+    private InventoryFile() {
+    }
+
+    /**
+     * Reads every product slot of {@code file}.
+     *
+     * @return number of slots read
+     * @throws FormatException if the file does not follow {@code format}; the
+     *         slots before the faulty one have been handled
+     */
+    public static long read(final File file, final InventoryFormat format, final SlotHandler handler)
+            throws IOException {
+        if (format == InventoryFormat.Binary) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+                return readBinary(in, handler);
+            }
+        }
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            return readCsv(in, handler);
+        }
+    }
+
+    /**
+     * Opens a file to write an inventory to. The file is only replaced by
+     * {@link Writer#commit()}; closing the writer before discards what was
+     * written.
+     */
+    public static Writer write(final File file, final InventoryFormat format) throws IOException {
+        return format == InventoryFormat.Binary ? new BinaryWriter(file) : new CsvWriter(file);
+    }
+
+    private static long readCsv(final BufferedReader in, final SlotHandler handler) throws IOException {
+        long slots = 0;
+        long lineNumber = 0;
+        String machineId = null;
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            lineNumber++;
+            if (line.isEmpty() || line.startsWith("#") || (lineNumber == 1 && line.equals(CSV_HEADER))) {
+                continue;
+            }
+
+            // the product and the stock hold no comma, the machine-id may
+            final int stockStart = line.lastIndexOf(',');
+            final int productStart = stockStart > 0 ? line.lastIndexOf(',', stockStart - 1) : -1;
+            if (productStart < 0) {
+                throw new FormatException("Line " + lineNumber + ": expected machine-id,product,number-in-stock");
+            }
+            // the rows of a machine share its machine-id
+            if (machineId == null || machineId.length() != productStart || !line.startsWith(machineId)) {
+                machineId = checkMachineId(line.substring(0, productStart), "Line", lineNumber);
+            }
+            final Class<? extends VendingProducts> product = productAt(line, productStart + 1, stockStart, lineNumber);
+            handler.slot(machineId, product, stockAt(line, stockStart + 1, lineNumber));
+            slots++;
+        }
+        return slots;
+    }
+
+    private static long readBinary(final DataInputStream in, final SlotHandler handler) throws IOException {
+        final List<Class<? extends VendingProducts>> products;
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new FormatException("Not a binary inventory file");
+            }
+            final int slotCount = in.readUnsignedByte();
+            products = new ArrayList<>(slotCount);
+            for (int i = 0; i < slotCount; i++) {
+                products.add(productNamed(in.readUTF(), "Header slot", i + 1));
+            }
+        } catch (EOFException e) {
+            throw new FormatException("Truncated header");
+        }
+
+        long slots = 0;
+        long record = 0;
+        while (true) {
+            in.mark(1);
+            if (in.read() < 0) {
+                return slots;
+            }
+            in.reset();
+
+            record++;
+            try {
+                final String machineId = checkMachineId(in.readUTF(), "Record", record);
+                for (Class<? extends VendingProducts> product : products) {
+                    handler.slot(machineId, product, checkStock(readVarint(in), "Record", record));
+                    slots++;
+                }
+            } catch (EOFException e) {
+                throw new FormatException("Record " + record + ": truncated");
+            }
+        }
+    }
+
+    static String nameOf(final Class<? extends VendingProducts> product) {
+        // the binding class of an identity is named after it
+        return product.getSimpleName().toLowerCase(Locale.ROOT);
+    }
+
+    /*
+     * The product and the stock of a CSV row are parsed in place, and where a
+     * value was read is only put in words when it is wrong: beyond the line
+     * itself, a valid file builds no string per slot.
+     */
+
+    private static Class<? extends VendingProducts> productAt(final String line, final int start, final int end,
+            final long lineNumber) throws FormatException {
+        int from = start;
+        int to = end;
+        while (from < to && line.charAt(from) == ' ') {
+            from++;
+        }
+        while (to > from && line.charAt(to - 1) == ' ') {
+            to--;
+        }
+        for (int i = 0; i < PRODUCT_NAMES.length; i++) {
+            final String name = PRODUCT_NAMES[i];
+            if (name.length() == to - from && line.regionMatches(from, name, 0, name.length())) {
+                return ProductInventory.PRODUCTS.get(i);
+            }
+        }
+        return productNamed(line.substring(from, to), "Line", lineNumber);
+    }
+
+    private static long stockAt(final String line, final int start, final long lineNumber) throws FormatException {
+        int from = start;
+        int to = line.length();
+        while (from < to && line.charAt(from) == ' ') {
+            from++;
+        }
+        while (to > from && line.charAt(to - 1) == ' ') {
+            to--;
+        }
+        final boolean negative = from < to && line.charAt(from) == '-';
+        if (negative) {
+            from++;
+        }
+        if (from == to) {
+            throw new FormatException("Line " + lineNumber + ": invalid number-in-stock");
+        }
+        long stock = 0;
+        for (int i = from; i < to; i++) {
+            final char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new FormatException("Line " + lineNumber + ": invalid number-in-stock");
+            }
+            // past the largest stock the digits are only checked
+            stock = Math.min(stock * 10 + (c - '0'), MAX_STOCK + 1);
+        }
+        return checkStock(negative ? -stock : stock, "Line", lineNumber);
+    }
+
+    private static Class<? extends VendingProducts> productNamed(final String name, final String unit,
+            final long position) throws FormatException {
+        final Class<? extends VendingProducts> product = PRODUCTS_BY_NAME.get(name);
+        if (product == null) {
+            throw new FormatException(unit + " " + position + ": unknown product " + name);
+        }
+        return product;
+    }
+
+    private static String checkMachineId(final String machineId, final String unit, final long position)
+            throws FormatException {
+        if (machineId.isEmpty() || machineId.length() > MAX_MACHINE_ID_LENGTH) {
+            throw new FormatException(unit + " " + position + ": machine-id must hold 1 to " + MAX_MACHINE_ID_LENGTH + " characters");
+        }
+        return machineId;
+    }
+
+    private static long checkStock(final long stock, final String unit, final long position)
+            throws FormatException {
+        if (stock < 0 || stock > MAX_STOCK) {
+            throw new FormatException(unit + " " + position + ": number-in-stock out of range");
+        }
+        return stock;
+    }
+
+    static long readVarint(final DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new FormatException("Varint longer than 64 bits");
+    }
+
+    static void writeVarint(final DataOutputStream out, final long value) throws IOException {
+        long remaining = value;
+        while ((remaining & ~0x7fL) != 0) {
+            out.writeByte((int) (remaining & 0x7f) | 0x80);
+            remaining >>>= 7;
+        }
+        out.writeByte((int) remaining);
+    }
+
+    /**
+     * Writes an inventory next to its file, which it replaces on commit.
+     */
+    public abstract static class Writer implements Closeable {
+        private final File file;
+        private final File tmpFile;
+        private boolean committed;
+
+        Writer(final File file) {
+            this.file = file;
+            this.tmpFile = new File(file.getPath() + ".tmp");
+        }
+
+        File getTmpFile() {
+            return tmpFile;
+        }
+
+        /**
+         * Writes every product slot of one machine.
+         */
+        public abstract void machine(String machineId, ProductInventory inventory) throws IOException;
+
+        abstract void closeStream() throws IOException;
+
+        /**
+         * Replaces the file with what was written.
+         */
+        public void commit() throws IOException {
+            closeStream();
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                try {
+                    closeStream();
+                } finally {
+                    Files.deleteIfExists(tmpFile.toPath());
+                }
+            }
+        }
+    }
+
+    private static final class CsvWriter extends Writer {
+        private final BufferedWriter out;
+
+        CsvWriter(final File file) throws IOException {
+            super(file);
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(getTmpFile()),
+                    StandardCharsets.UTF_8), BUFFER_SIZE);
+            out.write(CSV_HEADER);
+            out.newLine();
+        }
+
+        @Override
+        public void machine(final String machineId, final ProductInventory inventory) throws IOException {
+            if (machineId.indexOf('\n') >= 0 || machineId.indexOf('\r') >= 0) {
+                throw new FormatException("Machine-id " + machineId + " holds a line break, export it as binary");
+            }
+            for (Class<? extends VendingProducts> product : ProductInventory.PRODUCTS) {
+                out.write(machineId);
+                out.write(',');
+                out.write(nameOf(product));
+                out.write(',');
+                out.write(Long.toString(inventory.getInStock(product)));
+                out.newLine();
+            }
+        }
+
+        @Override
+        void closeStream() throws IOException {
+            out.close();
+        }
+    }
+
+    private static final class BinaryWriter extends Writer {
+        private final DataOutputStream out;
+
+        BinaryWriter(final File file) throws IOException {
+            super(file);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getTmpFile()), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeByte(ProductInventory.PRODUCTS.size());
+            for (Class<? extends VendingProducts> product : ProductInventory.PRODUCTS) {
+                out.writeUTF(nameOf(product));
+            }
+        }
+
+        @Override
+        public void machine(final String machineId, final ProductInventory inventory) throws IOException {
+            out.writeUTF(machineId);
+            for (Class<? extends VendingProducts> product : ProductInventory.PRODUCTS) {
+                writeVarint(out, inventory.getInStock(product));
+            }
+        }
+
+        @Override
+        void closeStream() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.RefullItemInput;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Forwards requests between providers of the same JVM, one per node-id, such
+ * as several nodes started against one data broker in a test.
+ */
+public class LocalOrderForwarder implements OrderForwarder {
+
+    private final ConcurrentMap<String, VendingmachineProvider> nodes = new ConcurrentHashMap<>();
+    private final OrderForwarder unknownNode = new RejectingOrderForwarder();
+
+    public void register(final String nodeId, final VendingmachineProvider provider) {
+        nodes.put(nodeId, provider);
+    }
+
+    public void unregister(final String nodeId) {
+        nodes.remove(nodeId);
+    }
+
+    @Override
+    public ListenableFuture<RpcResult<Void>> forwardOrder(final String owner, final MakeOrderInput input) {
+        final VendingmachineProvider provider = nodes.get(owner);
+        return provider != null ? provider.makeOwnedOrder(input) : unknownNode.forwardOrder(owner, input);
+    }
+
+    @Override
+    public ListenableFuture<RpcResult<Void>> forwardRefill(final String owner, final RefullItemInput input) {
+        final VendingmachineProvider provider = nodes.get(owner);
+        return provider != null ? provider.refullOwnedItem(input) : unknownNode.forwardRefill(owner, input);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Fleet;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MachineId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.fleet.Machine;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.fleet.MachineKey;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+
+/**
+ * Runtime state of one vending machine of the fleet: its stock, its in-flight
+ * orders and the shard its orders are executed on.
+ */
+public class MachineContext {
+
+    /**
+     * The machine reported in the vendingmachine container. Requests without a
+     * machine-id are for this machine.
+     */
+    public static final String DEFAULT_MACHINE_ID = "default";
+
+    /**
+     * Which node serves the machine. Without clustering every machine is
+     * {@link #OWNED}.
+     */
+    public enum Ownership {
+        /** Served by this node. */
+        OWNED,
+        /** Becoming this node's, once the previous owner stopped writing it. */
+        ACQUIRING,
+        /** Moving to another node, which takes over once this node's last writes are out. */
+        RELEASING,
+        /** Served by another node. */
+        NOT_OWNED
+    }
+
+    private final String machineId;
+    private final InstanceIdentifier<Machine> iid;
+    private final int shard;
+    private final ProductInventory inventory;
+    private final InFlightLimiter ordersInFlight;
+    private final AtomicLong ordersMade = new AtomicLong();
+    private final OrderQueue orderQueue = new OrderQueue();
+    private volatile Ownership ownership = Ownership.OWNED;
+    private volatile String owner;
+
+    public MachineContext(final String machineId, final int shard, final long initialStockPerProduct,
+            final int maxOrdersInFlight) {
+        this.machineId = machineId;
+        this.shard = shard;
+        this.iid = InstanceIdentifier.builder(Fleet.class).child(Machine.class, new MachineKey(new MachineId(machineId)))
+                .build();
+        this.inventory = new ProductInventory(initialStockPerProduct);
+        this.ordersInFlight = new InFlightLimiter(maxOrdersInFlight);
+    }
+
+    public String getMachineId() {
+        return machineId;
+    }
+
+    public boolean isDefault() {
+        return DEFAULT_MACHINE_ID.equals(machineId);
+    }
+
+    /**
+     * @return path of this machine's entry in the operational fleet list
+     */
+    public InstanceIdentifier<Machine> getIid() {
+        return iid;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public ProductInventory getInventory() {
+        return inventory;
+    }
+
+    public InFlightLimiter getOrdersInFlight() {
+        return ordersInFlight;
+    }
+
+    public AtomicLong getOrdersMade() {
+        return ordersMade;
+    }
+
+    /**
+     * @return orders waiting for this machine, disabled until given a capacity
+     */
+    public OrderQueue getOrderQueue() {
+        return orderQueue;
+    }
+
+    public Ownership getOwnership() {
+        return ownership;
+    }
+
+    public void setOwnership(final Ownership ownership) {
+        this.ownership = ownership;
+    }
+
+    /**
+     * @return node-id of the node serving this machine, null while it is this node
+     *         without clustering
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(final String owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * @return whether this node may write the machine's operational state
+     */
+    public boolean isWritable() {
+        return ownership == Ownership.OWNED || ownership == Ownership.RELEASING;
+    }
+
+    @Override
+    public String toString() {
+        return "MachineContext [machineId=" + machineId + ", shard=" + shard + "]";
+    }
+}
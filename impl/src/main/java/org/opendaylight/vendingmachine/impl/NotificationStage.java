@@ -0,0 +1,189 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendaylight.controller.sal.binding.api.NotificationProviderService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MachineId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.RefullvendingmachineBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingmachineLowStockBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingmachineOutOfItemsBuilder;
+import org.opendaylight.yangtools.yang.binding.Notification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Publishes stock notifications off the order path.
+ *
+ * <p>Callers only record that the stock of a machine changed or that it was
+ * refilled. The first change schedules a flush one window later; every change
+ * until then is folded into that flush. A flush publishes a notification per
+ * product whose stock level moved to low or out of stock since the last
+ * published level, and one refill notification per machine with the number of
+ * items its refills added over the window.
+ */
+public class NotificationStage implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationStage.class);
+
+    enum StockLevel {
+        OK, LOW, OUT
+    }
+
+    private final NotificationProviderService notificationService;
+    private final long lowStockThreshold;
+    private final long windowMillis;
+
+    private final ScheduledExecutorService publisher;
+    private final Set<MachineContext> changedMachines =
+            Collections.newSetFromMap(new ConcurrentHashMap<MachineContext, Boolean>());
+    private final ConcurrentMap<MachineContext, AtomicLong> refills = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // only accessed on the publisher thread
+    private final Map<MachineContext, StockLevel[]> publishedLevels = new HashMap<>();
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            flush();
+        }
+    };
+
+    /**
+     * @param lowStockThreshold stock at or below which a product is low on stock
+     * @param windowMillis time over which changes are collapsed into one flush
+     */
+    public NotificationStage(final NotificationProviderService notificationService, final long lowStockThreshold,
+            final long windowMillis) {
+        this.notificationService = notificationService;
+        this.lowStockThreshold = lowStockThreshold;
+        this.windowMillis = windowMillis;
+        publisher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("vendingmachine-notifications-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Records that items of a machine were taken out of stock.
+     */
+    public void stockChanged(final MachineContext machine) {
+        changedMachines.add(machine);
+        scheduleFlush();
+    }
+
+    /**
+     * Records that a refill added {@code items} items to the stock of a
+     * machine, negative if it lowered the stock.
+     */
+    public void refilled(final MachineContext machine, final long items) {
+        AtomicLong refilled = refills.get(machine);
+        if (refilled == null) {
+            final AtomicLong created = new AtomicLong();
+            refilled = refills.putIfAbsent(machine, created);
+            if (refilled == null) {
+                refilled = created;
+            }
+        }
+        refilled.addAndGet(items);
+        stockChanged(machine);
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                publisher.schedule(flushTask, windowMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Notification stage closed, change not published");
+            }
+        }
+    }
+
+    /**
+     * Runs on the publisher thread only.
+     */
+    private void flush() {
+        for (MachineContext machine : changedMachines) {
+            changedMachines.remove(machine);
+
+            final AtomicLong refilled = refills.get(machine);
+            final long quantity = refilled != null ? refilled.getAndSet(0) : 0;
+            // refills that only lowered the stock over the window are not notified
+            if (quantity > 0) {
+                publish(new RefullvendingmachineBuilder()
+                        .setMachineId(new MachineId(machine.getMachineId()))
+                        .setQuantityofproduct(quantity)
+                        .build());
+            }
+
+            StockLevel[] levels = publishedLevels.get(machine);
+            if (levels == null) {
+                levels = new StockLevel[ProductInventory.PRODUCTS.size()];
+                Arrays.fill(levels, StockLevel.OK);
+                publishedLevels.put(machine, levels);
+            }
+            for (int i = 0; i < levels.length; i++) {
+                final Class<? extends VendingProducts> product = ProductInventory.PRODUCTS.get(i);
+                final long inStock = machine.getInventory().getInStock(product);
+                final StockLevel level = levelOf(inStock);
+                if (level != levels[i]) {
+                    levels[i] = level;
+                    publishLevel(machine, product, level, inStock);
+                }
+            }
+        }
+    }
+
+    private void publishLevel(final MachineContext machine, final Class<? extends VendingProducts> product,
+            final StockLevel level, final long inStock) {
+        final MachineId machineId = new MachineId(machine.getMachineId());
+        if (level == StockLevel.OUT) {
+            LOG.debug("Vending machine {} is out of {}", machine.getMachineId(), product.getSimpleName());
+            publish(new VendingmachineOutOfItemsBuilder().setMachineId(machineId).setItemtype(product).build());
+        } else if (level == StockLevel.LOW) {
+            publish(new VendingmachineLowStockBuilder().setMachineId(machineId).setItemtype(product)
+                    .setNumberInStock(inStock).build());
+        }
+    }
+
+    private void publish(final Notification notification) {
+        try {
+            notificationService.publish(notification);
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to publish {}", notification, e);
+        }
+    }
+
+    StockLevel levelOf(final long inStock) {
+        if (inStock == 0) {
+            return StockLevel.OUT;
+        }
+        return inStock <= lowStockThreshold ? StockLevel.LOW : StockLevel.OK;
+    }
+
+    @Override
+    public void close() {
+        publisher.execute(flushTask);
+        publisher.shutdown();
+    }
+}
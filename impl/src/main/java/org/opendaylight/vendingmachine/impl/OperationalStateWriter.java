@@ -0,0 +1,279 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.api.WriteTransaction;
+import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MachineId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MachineStatus;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Vendingmachine.VendingmachineStatus;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingmachineBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.fleet.MachineBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.product.stock.ProductSlot;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.product.stock.ProductSlotBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Background writer of the stock and status of the machines of the fleet, and
+ * of the default machine's leaves in the operational vendingmachine container.
+ *
+ * <p>Callers only record which machine changed. All machines changed since the
+ * last write are merged into a single write transaction, issued either every
+ * write interval or as soon as the batch size is reached, so the datastore write
+ * rate does not grow with the order rate.
+ *
+ * <p>A serialized order reads the whole vendingmachine container in a
+ * read-write transaction, which any write to the container made meanwhile
+ * fails with an optimistic lock failure. The default machine's leaves are
+ * therefore left out of the writes while such a transaction is open, and
+ * written once the last one is closed.
+ */
+public class OperationalStateWriter implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OperationalStateWriter.class);
+
+    private final DataBroker dataBroker;
+    private final boolean writeStatus;
+    private final long batchSize;
+    private final String nodeId;
+
+    private final ScheduledExecutorService scheduler;
+    private final ScheduledFuture<?> periodicWrite;
+    private final AtomicLong pendingChanges = new AtomicLong();
+    private final Set<MachineContext> changedMachines =
+            Collections.newSetFromMap(new ConcurrentHashMap<MachineContext, Boolean>());
+    private final AtomicBoolean writeQueued = new AtomicBoolean();
+    private final AtomicInteger orderTransactions = new AtomicInteger();
+    // the default machine, while its vendingmachine container leaves wait for the order transactions
+    private final AtomicReference<MachineContext> deferredMachine = new AtomicReference<>();
+
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            writeQueued.set(false);
+            write();
+        }
+    };
+
+    /**
+     * @param writeStatus whether the vendingmachine-status of the vendingmachine
+     *        container is derived from the stock and written too; false when that
+     *        leaf is used as the order mutex and is owned by the order path
+     */
+    public OperationalStateWriter(final DataBroker dataBroker, final boolean writeStatus,
+            final long writeIntervalMillis, final long batchSize) {
+        this(dataBroker, writeStatus, writeIntervalMillis, batchSize, null);
+    }
+
+    /**
+     * @param nodeId cluster node-id written as the owner of the machines, null
+     *        without clustering
+     */
+    public OperationalStateWriter(final DataBroker dataBroker, final boolean writeStatus,
+            final long writeIntervalMillis, final long batchSize, final String nodeId) {
+        this.dataBroker = dataBroker;
+        this.writeStatus = writeStatus;
+        this.batchSize = Math.max(1, batchSize);
+        this.nodeId = nodeId;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("vendingmachine-writer-%d").setDaemon(true).build());
+        periodicWrite = scheduler.scheduleWithFixedDelay(writeTask, writeIntervalMillis, writeIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records that the stock (and therefore possibly the status) of a machine
+     * changed.
+     */
+    public void stockChanged(final MachineContext machine) {
+        changedMachines.add(machine);
+        if (pendingChanges.incrementAndGet() >= batchSize && writeQueued.compareAndSet(false, true)) {
+            scheduler.execute(writeTask);
+        }
+    }
+
+    /**
+     * Records that a serialized order opened a transaction reading the
+     * vendingmachine container. Must be followed by
+     * {@link #orderTransactionClosed()} once it is committed or failed.
+     */
+    public void orderTransactionOpened() {
+        orderTransactions.incrementAndGet();
+    }
+
+    /**
+     * Records that a transaction of {@link #orderTransactionOpened()} is done,
+     * writing the vendingmachine container if it was held back for it.
+     */
+    public void orderTransactionClosed() {
+        if (orderTransactions.decrementAndGet() == 0) {
+            final MachineContext deferred = deferredMachine.getAndSet(null);
+            if (deferred != null) {
+                changedMachines.add(deferred);
+                pendingChanges.incrementAndGet();
+                if (writeQueued.compareAndSet(false, true)) {
+                    scheduler.execute(writeTask);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes all pending changes now.
+     *
+     * @return future completing once the write transaction is committed
+     */
+    public ListenableFuture<Void> flush() {
+        pendingChanges.incrementAndGet();
+        final ListenableFutureTask<ListenableFuture<Void>> task = ListenableFutureTask.create(
+                new Callable<ListenableFuture<Void>>() {
+                    @Override
+                    public ListenableFuture<Void> call() {
+                        return write();
+                    }
+                });
+        scheduler.execute(task);
+        return Futures.dereference(task);
+    }
+
+    /**
+     * Writes the stock of a machine this node no longer writes, with
+     * {@code newOwner} as its owner, after every write already pending. The
+     * new owner takes the machine over with this stock.
+     *
+     * @return future completing once the write transaction is committed
+     */
+    public ListenableFuture<Void> handOver(final MachineContext machine, final String newOwner) {
+        final ListenableFutureTask<ListenableFuture<Void>> task = ListenableFutureTask.create(
+                new Callable<ListenableFuture<Void>>() {
+                    @Override
+                    public ListenableFuture<Void> call() {
+                        write();
+                        final WriteTransaction tx = dataBroker.newWriteOnlyTransaction();
+                        writeMachine(tx, machine, newOwner);
+                        return tx.submit();
+                    }
+                });
+        scheduler.execute(task);
+        return Futures.dereference(task);
+    }
+
+    /**
+     * Runs on the writer thread only.
+     */
+    private ListenableFuture<Void> write() {
+        final long changes = pendingChanges.getAndSet(0);
+        if (changes == 0) {
+            return Futures.immediateFuture(null);
+        }
+
+        final WriteTransaction tx = dataBroker.newWriteOnlyTransaction();
+        final List<MachineContext> written = new ArrayList<>(changedMachines.size());
+        for (MachineContext machine : changedMachines) {
+            // removed before its stock is read: a change made after this point marks it again
+            changedMachines.remove(machine);
+            written.add(machine);
+            writeMachine(tx, machine);
+        }
+
+        final ListenableFuture<Void> commitFuture = tx.submit();
+        Futures.addCallback(commitFuture, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(final Void result) {
+                LOG.debug("Wrote {} coalesced stock changes of {} machines", changes, written.size());
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                LOG.warn("Failed to write Vendingmachine stock, will retry", t);
+                changedMachines.addAll(written);
+                pendingChanges.addAndGet(changes);
+            }
+        });
+        return commitFuture;
+    }
+
+    private void writeMachine(final WriteTransaction tx, final MachineContext machine) {
+        if (machine.isWritable()) {
+            writeMachine(tx, machine, nodeId);
+        }
+        // else another node serves the machine now, its entry is that node's to write
+    }
+
+    private void writeMachine(final WriteTransaction tx, final MachineContext machine, final String owner) {
+        final ProductInventory inventory = machine.getInventory();
+        final List<ProductSlot> slots = new ArrayList<>(ProductInventory.PRODUCTS.size());
+        for (Class<? extends VendingProducts> product : ProductInventory.PRODUCTS) {
+            slots.add(new ProductSlotBuilder().setProduct(product).setNumberInStock(inventory.getInStock(product)).build());
+        }
+
+        final long left = inventory.getTotalInStock();
+        tx.merge(LogicalDatastoreType.OPERATIONAL, machine.getIid(), new MachineBuilder()
+                .setMachineId(new MachineId(machine.getMachineId()))
+                .setMachineStatus(left == 0 ? MachineStatus.Empty : MachineStatus.Availability)
+                .setNumberOfProductsLeaft(left)
+                .setOwner(owner)
+                .setProductSlot(slots)
+                .build(), true);
+
+        if (machine.isDefault() && !deferVendingmachine(machine)) {
+            final VendingmachineBuilder builder = new VendingmachineBuilder()
+                    .setNumberOfProductsLeaft(left)
+                    .setProductSlot(slots);
+            if (writeStatus) {
+                builder.setVendingmachineStatus(left == 0 ? VendingmachineStatus.Empty : VendingmachineStatus.Availability);
+            }
+            tx.merge(LogicalDatastoreType.OPERATIONAL, VendingmachineProvider.VENDINGMACHINE_IID, builder.build());
+        }
+    }
+
+    /**
+     * @return true if the vendingmachine container is left to the last order
+     *         transaction to close
+     */
+    private boolean deferVendingmachine(final MachineContext machine) {
+        if (orderTransactions.get() == 0) {
+            return false;
+        }
+        deferredMachine.set(machine);
+        // the last transaction may have closed before the machine was deferred
+        return orderTransactions.get() > 0 || !deferredMachine.compareAndSet(machine, null);
+    }
+
+    @Override
+    public void close() {
+        periodicWrite.cancel(false);
+        scheduler.execute(writeTask);
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The deadline by which one order has to start dispensing, settling the race
+ * between the order reaching its dispense and its deadline passing: exactly one
+ * of them wins.
+ *
+ * <p>An order that expires before its dispense starts is answered at once and
+ * never dispensed; the items it reserved are put back when it reaches the
+ * dispense. Once the dispense started the deadline no longer applies, the
+ * order completes the way its dispense does.
+ */
+public class OrderDeadline {
+
+    private static final int WAITING = 0;
+    private static final int EXPIRED = 1;
+    private static final int DISPENSING = 2;
+
+    private final long deadlineNanos;
+    private final AtomicInteger state = new AtomicInteger(WAITING);
+
+    /**
+     * @param deadlineNanos {@link System#nanoTime()} by which the order has to
+     *        start dispensing
+     */
+    public OrderDeadline(final long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    public long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    public boolean hasPassed(final long nowNanos) {
+        return nowNanos - deadlineNanos >= 0;
+    }
+
+    /**
+     * Called once the deadline passed.
+     *
+     * @return true if the order had not started dispensing, the caller then
+     *         answers it; false if it was already answered or is dispensing
+     */
+    public boolean expire() {
+        return state.compareAndSet(WAITING, EXPIRED);
+    }
+
+    /**
+     * Claims the order for its dispense.
+     *
+     * @return false if the order expired, it must not be dispensed
+     */
+    public boolean startDispense() {
+        return state.compareAndSet(WAITING, DISPENSING);
+    }
+}
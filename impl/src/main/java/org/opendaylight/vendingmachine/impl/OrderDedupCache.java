@@ -0,0 +1,118 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendaylight.yangtools.yang.common.RpcResult;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Outcome of the recent orders submitted with a client-order-id, so that an
+ * order submitted again gets the outcome of the first submission instead of
+ * being made twice.
+ *
+ * <p>Only orders that took items out of stock, or may still do so, are
+ * remembered: an order turned down is forgotten as soon as it is answered, and
+ * its retry is made anew. The number of orders remembered and the time they
+ * are remembered for are both bounded, the oldest are evicted first.
+ */
+public class OrderDedupCache {
+
+    private final ConcurrentMap<Key, ListenableFuture<RpcResult<Void>>> orders;
+    private final AtomicLong duplicates = new AtomicLong();
+
+    public OrderDedupCache(final long maximumSize, final long expireAfterWriteMillis) {
+        orders = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteMillis, TimeUnit.MILLISECONDS)
+                .<Key, ListenableFuture<RpcResult<Void>>>build()
+                .asMap();
+    }
+
+    /**
+     * Remembers {@code outcome} as the outcome of an order, unless an order
+     * with the same client-order-id was submitted for the machine before.
+     *
+     * @return the outcome of the first submission, or null if there is none
+     *         and the caller makes the order
+     */
+    public ListenableFuture<RpcResult<Void>> register(final String machineId, final String clientOrderId,
+            final ListenableFuture<RpcResult<Void>> outcome) {
+        final Key key = new Key(machineId, clientOrderId);
+        final ListenableFuture<RpcResult<Void>> first = orders.putIfAbsent(key, outcome);
+        if (first != null) {
+            duplicates.incrementAndGet();
+            return first;
+        }
+
+        outcome.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (!isSuccessful(outcome)) {
+                    orders.remove(key, outcome);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        return null;
+    }
+
+    /**
+     * @return number of submissions answered with the outcome of an earlier
+     *         one
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    public long size() {
+        return orders.size();
+    }
+
+    /**
+     * @param outcome a completed outcome
+     */
+    static boolean isSuccessful(final ListenableFuture<RpcResult<Void>> outcome) {
+        try {
+            return outcome.get().isSuccessful();
+        } catch (InterruptedException | ExecutionException | CancellationException e) {
+            return false;
+        }
+    }
+
+    private static final class Key {
+        private final String machineId;
+        private final String clientOrderId;
+
+        Key(final String machineId, final String clientOrderId) {
+            this.machineId = machineId;
+            this.clientOrderId = clientOrderId;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * machineId.hashCode() + clientOrderId.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return machineId.equals(other.machineId) && clientOrderId.equals(other.clientOrderId);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.RefullItemInput;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Hands a request for a machine owned by another cluster node to that node,
+ * which serves it without forwarding it again.
+ */
+public interface OrderForwarder {
+
+    ListenableFuture<RpcResult<Void>> forwardOrder(String owner, MakeOrderInput input);
+
+    ListenableFuture<RpcResult<Void>> forwardRefill(String owner, RefullItemInput input);
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Append-only journal of the orders and refills of the fleet, on a
+ * memory-mapped file, with a snapshot the journal is compacted into.
+ *
+ * <p>Each record is its payload length, the CRC32 of the payload and the
+ * payload: the journal generation, the record type, the machine-id, the
+ * product slot and a stock delta. Orders, cancelled orders and refills are all
+ * deltas, so records of concurrent stock updates are correct in any order.
+ * Recovery loads the snapshot and replays the records of its generation up to
+ * the first torn or foreign record.
+ *
+ * <p>Appending only copies the record into the mapped file under a lock. A
+ * single committer thread forces the file and completes the futures of all the
+ * records appended since its previous force, so concurrent orders share one
+ * force.
+ *
+ * <p>The file is split in two halves, each generation writing into one of them
+ * in turn. Once the current half is half full, the committer copies the state
+ * under the lock and starts the next generation in the other half, then
+ * writes the snapshot of that state outside the lock while orders go on being
+ * appended. The half of the previous generation is reused only once that
+ * snapshot is durable, so recovery replays the generation of the snapshot and
+ * the one after it, which is there if the journal stopped before the snapshot
+ * was written.
+ */
+public class OrderJournal implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OrderJournal.class);
+
+    static final String JOURNAL_FILE = "orders.journal";
+    static final String SNAPSHOT_FILE = "orders.snapshot";
+
+    private static final int SNAPSHOT_MAGIC = 0x564d5331;
+    private static final int HEADER_SIZE = 8;
+    // generation, type, machine-id length, slot and value
+    private static final int MIN_RECORD_SIZE = 8 + 1 + 2 + 1 + 8;
+
+    private static final byte ORDER = 1;
+    private static final byte CANCEL = 2;
+    private static final byte REFILL = 3;
+
+    private static final int ORDERS_MADE = 0;
+    private static final int SLOTS = ProductInventory.PRODUCTS.size();
+
+    /**
+     * State of one machine as described by the journal.
+     */
+    public static final class MachineState {
+        private final long[] values;
+
+        MachineState(final long initialStockPerProduct) {
+            values = new long[SLOTS + 1];
+            Arrays.fill(values, 1, values.length, initialStockPerProduct);
+        }
+
+        MachineState(final long[] values) {
+            this.values = values;
+        }
+
+        public long getOrdersMade() {
+            return values[ORDERS_MADE];
+        }
+
+        public long getInStock(final Class<? extends VendingProducts> product) {
+            return values[1 + ProductInventory.PRODUCTS.indexOf(product)];
+        }
+
+        MachineState copy() {
+            return new MachineState(values.clone());
+        }
+    }
+
+    private final File directory;
+    private final long initialStockPerProduct;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    // the halves of the file, generation n writes into segments[n & 1]
+    private final ByteBuffer[] segments = new ByteBuffer[2];
+    private final int compactAt;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasWork = lock.newCondition();
+    private final Condition snapshotWritten = lock.newCondition();
+    private final CRC32 crc = new CRC32();
+    // all guarded by lock
+    private final Map<String, MachineState> state = new HashMap<>();
+    private List<SettableFuture<Void>> pending = new ArrayList<>();
+    private long generation;
+    private boolean closed;
+    // state when the current generation started, until its snapshot is written
+    private Map<String, MachineState> snapshot;
+    private IOException snapshotFailure;
+
+    private final Thread committer;
+
+    /**
+     * Opens the journal in {@code directory}, creating it if needed, and recovers
+     * the state it describes.
+     *
+     * @param size size of the journal file in bytes
+     * @param initialStockPerProduct stock of every slot of a machine before its
+     *        first refill
+     */
+    public OrderJournal(final File directory, final int size, final long initialStockPerProduct) throws IOException {
+        this.directory = directory;
+        this.initialStockPerProduct = initialStockPerProduct;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+
+        final RandomAccessFile file = new RandomAccessFile(new File(directory, JOURNAL_FILE), "rw");
+        channel = file.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        for (int i = 0; i < segments.length; i++) {
+            final ByteBuffer half = buffer.duplicate();
+            half.position(i * (size / 2)).limit((i + 1) * (size / 2));
+            segments[i] = half.slice();
+        }
+        compactAt = size / 4;
+
+        final long started = System.nanoTime();
+        loadSnapshot();
+        int replayed = replay(segment(generation), generation);
+        final int unsnapshotted = replay(segment(generation + 1), generation + 1);
+        if (unsnapshotted > 0) {
+            // stopped before the snapshot of the next generation was written
+            generation += 2;
+            writeSnapshot(generation, state);
+            segment(generation).position(0);
+            replayed += unsnapshotted;
+        }
+        LOG.info("Recovered {} machines from {} journal records in {}us", state.size(), replayed,
+                (System.nanoTime() - started) / 1000);
+
+        committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitLoop();
+            }
+        }, "vendingmachine-journal");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * @return copy of the recovered state of every machine found in the journal
+     */
+    public Map<String, MachineState> getState() {
+        lock.lock();
+        try {
+            final Map<String, MachineState> copy = new HashMap<>();
+            for (Map.Entry<String, MachineState> entry : state.entrySet()) {
+                copy.put(entry.getKey(), entry.getValue().copy());
+            }
+            return copy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Journals an order that took {@code items} items out of stock.
+     *
+     * @return future completing once the record is durable
+     */
+    public ListenableFuture<Void> orderMade(final String machineId, final Class<? extends VendingProducts> product,
+            final long items) {
+        return append(ORDER, machineId, ProductInventory.PRODUCTS.indexOf(product), items);
+    }
+
+    /**
+     * Journals that an order journaled with {@link #orderMade} was not made and
+     * its items are back in stock.
+     */
+    public ListenableFuture<Void> orderCancelled(final String machineId, final Class<? extends VendingProducts> product,
+            final long items) {
+        return append(CANCEL, machineId, ProductInventory.PRODUCTS.indexOf(product), items);
+    }
+
+    /**
+     * Journals a refill that added {@code items} items of {@code product}, or
+     * removed them if negative.
+     */
+    public ListenableFuture<Void> refilled(final String machineId, final Class<? extends VendingProducts> product,
+            final long items) {
+        return append(REFILL, machineId, ProductInventory.PRODUCTS.indexOf(product), items);
+    }
+
+    /**
+     * @return future completing once everything appended so far is durable
+     */
+    public ListenableFuture<Void> sync() {
+        lock.lock();
+        try {
+            if (closed) {
+                return Futures.immediateFailedFuture(new IOException("Journal closed"));
+            }
+            final SettableFuture<Void> durable = SettableFuture.create();
+            pending.add(durable);
+            hasWork.signal();
+            return durable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ListenableFuture<Void> append(final byte type, final String machineId, final int slot, final long value) {
+        final byte[] id = machineId.getBytes(StandardCharsets.UTF_8);
+        final int length = MIN_RECORD_SIZE + id.length;
+
+        lock.lock();
+        try {
+            if (HEADER_SIZE + length > segments[0].capacity()) {
+                return Futures.immediateFailedFuture(new IOException("Journal record too large"));
+            }
+            ByteBuffer segment = segment(generation);
+            while (!closed && segment.position() + HEADER_SIZE + length > segment.capacity()) {
+                if (snapshot == null) {
+                    startGeneration();
+                } else if (snapshotFailure != null) {
+                    // let the committer try again
+                    final IOException failure = snapshotFailure;
+                    snapshotFailure = null;
+                    hasWork.signal();
+                    return Futures.immediateFailedFuture(failure);
+                } else {
+                    // the other half holds the previous generation until the snapshot is written
+                    snapshotWritten.awaitUninterruptibly();
+                }
+                segment = segment(generation);
+            }
+            if (closed) {
+                return Futures.immediateFailedFuture(new IOException("Journal closed"));
+            }
+
+            final int start = segment.position();
+            segment.position(start + HEADER_SIZE);
+            segment.putLong(generation).put(type).putShort((short) id.length).put(id).put((byte) slot).putLong(value);
+
+            crc.reset();
+            for (int i = start + HEADER_SIZE; i < segment.position(); i++) {
+                crc.update(segment.get(i));
+            }
+            segment.putInt(start, length);
+            segment.putInt(start + 4, (int) crc.getValue());
+
+            apply(type, machineId, slot, value);
+
+            final SettableFuture<Void> durable = SettableFuture.create();
+            pending.add(durable);
+            hasWork.signal();
+            return durable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer segment(final long ofGeneration) {
+        return segments[(int) (ofGeneration & 1)];
+    }
+
+    private void apply(final byte type, final String machineId, final int slot, final long value) {
+        MachineState machine = state.get(machineId);
+        if (machine == null) {
+            machine = new MachineState(initialStockPerProduct);
+            state.put(machineId, machine);
+        }
+        switch (type) {
+            case ORDER:
+                machine.values[ORDERS_MADE]++;
+                machine.values[1 + slot] -= value;
+                break;
+            case CANCEL:
+                machine.values[ORDERS_MADE]--;
+                machine.values[1 + slot] += value;
+                break;
+            case REFILL:
+                machine.values[1 + slot] += value;
+                break;
+            default:
+                LOG.warn("Ignoring journal record of unknown type {}", type);
+        }
+    }
+
+    private void commitLoop() {
+        for (;;) {
+            final List<SettableFuture<Void>> batch;
+            Map<String, MachineState> toWrite = null;
+            long snapshotGeneration = 0;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !snapshotDue() && !closed) {
+                    hasWork.awaitUninterruptibly();
+                }
+                if (closed && pending.isEmpty() && !snapshotDue()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+                if (snapshot == null && segment(generation).position() >= compactAt) {
+                    startGeneration();
+                }
+                if (snapshotDue()) {
+                    toWrite = snapshot;
+                    snapshotGeneration = generation;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            // records appended while forcing are forced too, and completed with the next batch
+            buffer.force();
+            for (SettableFuture<Void> durable : batch) {
+                durable.set(null);
+            }
+
+            if (toWrite != null) {
+                IOException failure = null;
+                try {
+                    writeSnapshot(snapshotGeneration, toWrite);
+                } catch (IOException e) {
+                    LOG.error("Failed to compact the order journal", e);
+                    failure = e;
+                }
+                lock.lock();
+                try {
+                    if (failure == null) {
+                        snapshot = null;
+                        LOG.debug("Order journal compacted into generation {}", snapshotGeneration);
+                    } else {
+                        snapshotFailure = failure;
+                    }
+                    snapshotWritten.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private boolean snapshotDue() {
+        return snapshot != null && snapshotFailure == null;
+    }
+
+    /**
+     * Copies the state for the snapshot the committer writes and starts the
+     * next generation in the other half of the file. Called with the lock
+     * held, and only once the snapshot of the current generation is written.
+     */
+    private void startGeneration() {
+        snapshot = new HashMap<>();
+        for (Map.Entry<String, MachineState> entry : state.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().copy());
+        }
+        generation++;
+        segment(generation).position(0);
+        hasWork.signal();
+    }
+
+    private void writeSnapshot(final long snapshotGeneration, final Map<String, MachineState> snapshotState)
+            throws IOException {
+        final File tmp = new File(directory, SNAPSHOT_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            final CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file), new CRC32());
+            final DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(snapshotGeneration);
+            out.writeInt(snapshotState.size());
+            for (Map.Entry<String, MachineState> entry : snapshotState.entrySet()) {
+                out.writeUTF(entry.getKey());
+                for (long value : entry.getValue().values) {
+                    out.writeLong(value);
+                }
+            }
+            out.flush();
+            final long checksum = checked.getChecksum().getValue();
+            out.writeLong(checksum);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(directory, SNAPSHOT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void loadSnapshot() throws IOException {
+        final File file = new File(directory, SNAPSHOT_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream raw = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            final CheckedInputStream checked = new CheckedInputStream(raw, new CRC32());
+            final DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not an order journal snapshot: " + file);
+            }
+            final long snapshotGeneration = in.readLong();
+            final int machines = in.readInt();
+            final Map<String, MachineState> loaded = new HashMap<>();
+            for (int i = 0; i < machines; i++) {
+                final String machineId = in.readUTF();
+                final long[] values = new long[SLOTS + 1];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = in.readLong();
+                }
+                loaded.put(machineId, new MachineState(values));
+            }
+            final long checksum = checked.getChecksum().getValue();
+            if (raw.readLong() != checksum) {
+                throw new IOException("Corrupt order journal snapshot: " + file);
+            }
+            generation = snapshotGeneration;
+            state.putAll(loaded);
+        }
+    }
+
+    /**
+     * Replays the records of a generation from the start of its half, leaving
+     * the half positioned after the last one.
+     *
+     * @return number of records replayed
+     */
+    private int replay(final ByteBuffer segment, final long ofGeneration) {
+        int records = 0;
+        int start = 0;
+        segment.position(0);
+        try {
+            for (;;) {
+                start = segment.position();
+                final int length = segment.getInt();
+                final int checksum = segment.getInt();
+                if (length < MIN_RECORD_SIZE || length > segment.remaining()) {
+                    segment.position(start);
+                    break;
+                }
+                crc.reset();
+                for (int i = segment.position(); i < segment.position() + length; i++) {
+                    crc.update(segment.get(i));
+                }
+                if ((int) crc.getValue() != checksum || segment.getLong(segment.position()) != ofGeneration) {
+                    // torn write, or a record left over from an older generation
+                    segment.position(start);
+                    break;
+                }
+
+                segment.getLong();
+                final byte type = segment.get();
+                final byte[] id = new byte[segment.getShort()];
+                segment.get(id);
+                final int slot = segment.get();
+                final long value = segment.getLong();
+                apply(type, new String(id, StandardCharsets.UTF_8), slot, value);
+                records++;
+            }
+        } catch (BufferUnderflowException e) {
+            LOG.debug("Order journal ends with a partial header");
+            segment.position(start);
+        }
+        return records;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            hasWork.signal();
+            snapshotWritten.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close the order journal", e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+/**
+ * The timed phases of an order.
+ */
+public enum OrderPhase {
+    /**
+     * Reading the machine status from the operational datastore.
+     */
+    DATASTORE_READ,
+    /**
+     * Committing the busy status that admits the order.
+     */
+    STATUS_COMMIT,
+    /**
+     * Dispensing the items.
+     */
+    DISPENSE,
+    /**
+     * Committing the available status once the order is done.
+     */
+    STATUS_RESET
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInput;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Bounded queue of the orders waiting for a busy machine, served earliest
+ * deadline first. An order has to leave the queue by the end of the queue
+ * timeout, or by its own deadline if that is earlier; orders without a
+ * deadline of their own are therefore served first come, first served.
+ *
+ * <p>The queue also keeps a moving average of the time an order holds the
+ * machine, from which callers turned away get a retry-after hint.
+ */
+public class OrderQueue {
+
+    /**
+     * An order waiting in the queue.
+     */
+    public static final class Entry implements Comparable<Entry> {
+        private final MakeOrderInput input;
+        private final SettableFuture<RpcResult<Void>> futureResult;
+        private final long deadlineNanos;
+        private final OrderDeadline orderDeadline;
+        private final long sequence;
+
+        Entry(final MakeOrderInput input, final SettableFuture<RpcResult<Void>> futureResult,
+                final long deadlineNanos, final OrderDeadline orderDeadline, final long sequence) {
+            this.input = input;
+            this.futureResult = futureResult;
+            this.deadlineNanos = deadlineNanos;
+            this.orderDeadline = orderDeadline;
+            this.sequence = sequence;
+        }
+
+        public MakeOrderInput getInput() {
+            return input;
+        }
+
+        public SettableFuture<RpcResult<Void>> getFutureResult() {
+            return futureResult;
+        }
+
+        /**
+         * @return the {@link System#nanoTime()} by which the order has to leave
+         *         the queue
+         */
+        public long getDeadlineNanos() {
+            return deadlineNanos;
+        }
+
+        /**
+         * @return the deadline of the order itself, null if it has none
+         */
+        public OrderDeadline getOrderDeadline() {
+            return orderDeadline;
+        }
+
+        @Override
+        public int compareTo(final Entry other) {
+            final long byDeadline = deadlineNanos - other.deadlineNanos;
+            if (byDeadline != 0) {
+                return byDeadline < 0 ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    // weight of the latest sample in the service time average, as a shift
+    private static final int SERVICE_TIME_SHIFT = 3;
+
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+    private long sequence;
+    private volatile int capacity;
+    private final AtomicLong serviceNanos = new AtomicLong();
+
+    public void setCapacity(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Queues an order that has to leave the queue by {@code deadlineNanos}.
+     *
+     * @return false if the queue is full or disabled
+     */
+    public boolean offer(final MakeOrderInput input, final SettableFuture<RpcResult<Void>> futureResult,
+            final long deadlineNanos) {
+        return offer(input, futureResult, deadlineNanos, null);
+    }
+
+    /**
+     * Queues an order with a deadline of its own, which has to leave the queue
+     * by {@code deadlineNanos} or by its own deadline, whichever is earlier.
+     *
+     * @return false if the queue is full or disabled
+     */
+    public synchronized boolean offer(final MakeOrderInput input, final SettableFuture<RpcResult<Void>> futureResult,
+            final long deadlineNanos, final OrderDeadline orderDeadline) {
+        if (queue.size() >= capacity) {
+            return false;
+        }
+        final long leaveBy = orderDeadline != null && orderDeadline.getDeadlineNanos() - deadlineNanos < 0
+                ? orderDeadline.getDeadlineNanos() : deadlineNanos;
+        queue.add(new Entry(input, futureResult, leaveBy, orderDeadline, sequence++));
+        return true;
+    }
+
+    /**
+     * @return the order with the earliest deadline, null if none is waiting
+     */
+    public synchronized Entry poll() {
+        return queue.poll();
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * Takes the orders whose deadline passed out of the queue.
+     */
+    public synchronized List<Entry> removeExpired(final long nowNanos) {
+        List<Entry> expired = null;
+        for (Iterator<Entry> it = queue.iterator(); it.hasNext();) {
+            final Entry entry = it.next();
+            if (nowNanos - entry.deadlineNanos >= 0) {
+                it.remove();
+                if (expired == null) {
+                    expired = new ArrayList<>();
+                }
+                expired.add(entry);
+            }
+        }
+        return expired != null ? expired : Collections.<Entry>emptyList();
+    }
+
+    /**
+     * Takes all orders out of the queue.
+     */
+    public synchronized List<Entry> drain() {
+        final List<Entry> drained = new ArrayList<>(queue);
+        queue.clear();
+        return drained;
+    }
+
+    /**
+     * Records how long an order held the machine.
+     */
+    public void recordService(final long nanos) {
+        long current;
+        do {
+            current = serviceNanos.get();
+        } while (!serviceNanos.compareAndSet(current,
+                current == 0 ? nanos : current + ((nanos - current) >> SERVICE_TIME_SHIFT)));
+    }
+
+    /**
+     * @param parallelism number of orders the machine serves at once
+     * @return estimate, in milliseconds, of the time until the orders now
+     *         queued are served
+     */
+    public long getRetryAfterMillis(final int parallelism) {
+        final long waitNanos = (size() + 1) * serviceNanos.get() / Math.max(1, parallelism);
+        return Math.max(1, waitNanos / 1000000);
+    }
+}
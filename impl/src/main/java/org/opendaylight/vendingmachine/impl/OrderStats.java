@@ -0,0 +1,73 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Latency of each {@link OrderPhase} and count of each {@link RejectionReason}.
+ * Everything is recorded lock-free and can be cleared while orders go on.
+ */
+public class OrderStats {
+
+    private final Map<OrderPhase, LatencyHistogram> latencies = new EnumMap<>(OrderPhase.class);
+    private final AtomicLongArray rejections = new AtomicLongArray(RejectionReason.values().length);
+
+    public OrderStats() {
+        for (OrderPhase phase : OrderPhase.values()) {
+            latencies.put(phase, new LatencyHistogram());
+        }
+    }
+
+    public LatencyHistogram getLatency(final OrderPhase phase) {
+        return latencies.get(phase);
+    }
+
+    public void record(final OrderPhase phase, final long startNanos) {
+        latencies.get(phase).recordSince(startNanos);
+    }
+
+    /**
+     * Records the time from now until {@code future} completes, successfully or
+     * not, as the latency of {@code phase}.
+     *
+     * @return {@code future}
+     */
+    public <T extends ListenableFuture<?>> T time(final OrderPhase phase, final T future) {
+        final long start = System.nanoTime();
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                record(phase, start);
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    public void reject(final RejectionReason reason) {
+        rejections.incrementAndGet(reason.ordinal());
+    }
+
+    public long getRejections(final RejectionReason reason) {
+        return rejections.get(reason.ordinal());
+    }
+
+    public void clear() {
+        for (LatencyHistogram latency : latencies.values()) {
+            latency.reset();
+        }
+        for (int i = 0; i < rejections.length(); i++) {
+            rejections.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Juice;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Sandwich;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Snacks;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Water;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Stock of a vending machine, kept as one counter per product slot.
+ *
+ * <p>Every slot is an independent lock-free counter, so orders for different
+ * products never touch the same memory. An order for N items is reserved with
+ * a single compare-and-set: either all N items are taken or none are.
+ */
+public class ProductInventory {
+
+    /**
+     * The products a machine has a slot for. The position in this list is the
+     * slot number.
+     */
+    public static final List<Class<? extends VendingProducts>> PRODUCTS =
+            ImmutableList.<Class<? extends VendingProducts>>of(Snacks.class, Juice.class, Water.class, Sandwich.class);
+
+    private final ConcurrentMap<Class<? extends VendingProducts>, Slot> slots = new ConcurrentHashMap<>();
+
+    public ProductInventory(final long initialStockPerProduct) {
+        for (Class<? extends VendingProducts> product : PRODUCTS) {
+            slots.put(product, new Slot(initialStockPerProduct));
+        }
+    }
+
+    /**
+     * Takes {@code count} items of {@code product} out of stock.
+     *
+     * @return true if all items were reserved, false if the slot does not hold
+     *         enough items (in which case the stock is left untouched)
+     */
+    public boolean reserve(final Class<? extends VendingProducts> product, final long count) {
+        final Slot slot = slots.get(product);
+        if (slot == null) {
+            return false;
+        }
+
+        for (;;) {
+            final long current = slot.get();
+            if (current < count) {
+                return false;
+            }
+            if (slot.compareAndSet(current, current - count)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Puts back items previously taken by {@link #reserve(Class, long)}.
+     */
+    public void release(final Class<? extends VendingProducts> product, final long count) {
+        final Slot slot = slots.get(product);
+        if (slot != null) {
+            slot.addAndGet(count);
+        }
+    }
+
+    /**
+     * Sets the stock of {@code product} to {@code quantity}.
+     *
+     * @return number of items added to the slot, negative if it held more
+     */
+    public long refill(final Class<? extends VendingProducts> product, final long quantity) {
+        final Slot slot = slots.get(product);
+        return slot == null ? 0 : quantity - slot.getAndSet(quantity);
+    }
+
+    public void refillAll(final long quantity) {
+        for (Slot slot : slots.values()) {
+            slot.set(quantity);
+        }
+    }
+
+    public long getInStock(final Class<? extends VendingProducts> product) {
+        final Slot slot = slots.get(product);
+        return slot == null ? 0 : slot.get();
+    }
+
+    public long getTotalInStock() {
+        long total = 0;
+        for (Slot slot : slots.values()) {
+            total += slot.get();
+        }
+        return total;
+    }
+
+    public boolean isEmpty() {
+        return getTotalInStock() == 0;
+    }
+
+    /**
+     * Stock counter of one product. The trailing fields pad the counter out to
+     * its own cache line so that neighbouring slots do not false-share.
+     */
+    @SuppressWarnings("unused")
+    private static final class Slot extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+
+        private long p1, p2, p3, p4, p5, p6, p7;
+
+        Slot(final long initialValue) {
+            super(initialValue);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.RefullItemInput;
+import org.opendaylight.yangtools.yang.common.RpcError;
+import org.opendaylight.yangtools.yang.common.RpcError.ErrorType;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+import org.opendaylight.yangtools.yang.common.RpcResultBuilder;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * The forwarder of a node that cannot reach the other nodes: it turns every
+ * request down with the node-id of the owner, for the client to send it there.
+ */
+public class RejectingOrderForwarder implements OrderForwarder {
+
+    public static final String NOT_OWNER_APP_TAG = "not-owner";
+
+    @Override
+    public ListenableFuture<RpcResult<Void>> forwardOrder(final String owner, final MakeOrderInput input) {
+        return notOwner(owner);
+    }
+
+    @Override
+    public ListenableFuture<RpcResult<Void>> forwardRefill(final String owner, final RefullItemInput input) {
+        return notOwner(owner);
+    }
+
+    /**
+     * @return the error of a request sent to a node that does not own its
+     *         machine, {@code owner} being the node that does
+     */
+    public static RpcError notOwnerError(final String owner) {
+        return RpcResultBuilder.newError(ErrorType.APPLICATION, "resource-denied",
+                "Vending machine is served by node " + owner, NOT_OWNER_APP_TAG, "owner=" + owner, null);
+    }
+
+    private static ListenableFuture<RpcResult<Void>> notOwner(final String owner) {
+        return Futures.immediateFuture(RpcResultBuilder.<Void>failed().withRpcError(notOwnerError(owner)).build());
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+/**
+ * Why an order was turned down.
+ */
+public enum RejectionReason {
+    OUT_OF_STOCK,
+    /**
+     * Another order held the machine (serialized mode).
+     */
+    IN_USE,
+    /**
+     * The status commit kept failing on optimistic lock conflicts.
+     */
+    LOCK_RETRIES_EXHAUSTED,
+    /**
+     * The machine already had its maximum of orders in flight (concurrent mode).
+     */
+    TOO_MANY_IN_FLIGHT,
+    ORDER_TOO_LARGE,
+    UNKNOWN_MACHINE,
+    /**
+     * The machine was busy and its order queue was full.
+     */
+    QUEUE_FULL,
+    /**
+     * The order waited in the queue for longer than the queue timeout.
+     */
+    QUEUE_TIMEOUT,
+    /**
+     * The order had not started dispensing by its deadline.
+     */
+    DEADLINE_EXPIRED,
+    /**
+     * Another cluster node owns the machine, or it is moving to this node.
+     */
+    NOT_OWNER
+}
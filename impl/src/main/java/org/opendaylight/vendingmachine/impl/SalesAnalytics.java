@@ -0,0 +1,195 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+
+/**
+ * Rolling per-product sales over the last minute, hour and day.
+ *
+ * <p>Each window is a ring of fixed-size buckets: 60 one-second buckets for the
+ * minute, 60 one-minute buckets for the hour and 24 one-hour buckets for the
+ * day. A bucket remembers which period it counts, so a bucket left over from
+ * an earlier lap of the ring is reset when it is reused and skipped when read.
+ * Recording an order and reading a window take the same time whatever the
+ * order history, and recording neither locks nor allocates.
+ */
+public class SalesAnalytics {
+
+    /**
+     * The rolling windows sales are kept for.
+     */
+    public enum Window {
+        LAST_MINUTE(60, TimeUnit.SECONDS),
+        LAST_HOUR(60, TimeUnit.MINUTES),
+        LAST_DAY(24, TimeUnit.HOURS);
+
+        private final int buckets;
+        private final long bucketNanos;
+
+        private Window(final int buckets, final TimeUnit bucket) {
+            this.buckets = buckets;
+            this.bucketNanos = bucket.toNanos(1);
+        }
+
+        public long getLengthNanos() {
+            return buckets * bucketNanos;
+        }
+    }
+
+    /**
+     * Sales of one product over one window.
+     */
+    public static final class Sales {
+        private final long orders;
+        private final long items;
+        private final long coveredNanos;
+
+        Sales(final long orders, final long items, final long coveredNanos) {
+            this.orders = orders;
+            this.items = items;
+            this.coveredNanos = coveredNanos;
+        }
+
+        public long getOrders() {
+            return orders;
+        }
+
+        public long getItems() {
+            return items;
+        }
+
+        /**
+         * @return average number of items sold per minute over the window, or
+         *         over the time since start-up if that is shorter
+         */
+        public double getItemsPerMinute() {
+            return items * (double) TimeUnit.MINUTES.toNanos(1) / coveredNanos;
+        }
+    }
+
+    private static final Window[] WINDOWS = Window.values();
+    // first bucket of each window in the bucket arrays of a product
+    private static final int[] WINDOW_OFFSETS = new int[WINDOWS.length];
+    private static final int BUCKETS;
+
+    static {
+        int buckets = 0;
+        for (Window window : WINDOWS) {
+            WINDOW_OFFSETS[window.ordinal()] = buckets;
+            buckets += window.buckets;
+        }
+        BUCKETS = buckets;
+    }
+
+    // periods of a bucket not used yet, and of a bucket being reset; both older than any window
+    private static final long UNUSED = Long.MIN_VALUE;
+    private static final long RESETTING = Long.MIN_VALUE + 1;
+
+    // shortest time a rate is averaged over, so it does not spike at start-up
+    private static final long MIN_COVERED_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long startNanos;
+    private final ProductSales[] products = new ProductSales[ProductInventory.PRODUCTS.size()];
+
+    /**
+     * @param startNanos the {@link System#nanoTime()} sales are counted from
+     */
+    public SalesAnalytics(final long startNanos) {
+        this.startNanos = startNanos;
+        for (int i = 0; i < products.length; i++) {
+            products[i] = new ProductSales();
+        }
+    }
+
+    /**
+     * Records an order made at {@code nowNanos}, a {@link System#nanoTime()}.
+     */
+    public void orderMade(final Class<? extends VendingProducts> product, final long items, final long nowNanos) {
+        final int index = ProductInventory.PRODUCTS.indexOf(product);
+        if (index >= 0) {
+            products[index].record(elapsed(nowNanos), items);
+        }
+    }
+
+    public Sales getSales(final Class<? extends VendingProducts> product, final Window window, final long nowNanos) {
+        final int index = ProductInventory.PRODUCTS.indexOf(product);
+        final long elapsed = elapsed(nowNanos);
+        // a window is only partly covered right after start-up
+        final long covered = Math.max(MIN_COVERED_NANOS, Math.min(elapsed, window.getLengthNanos()));
+        if (index < 0) {
+            return new Sales(0, 0, covered);
+        }
+        return products[index].read(window, elapsed, covered);
+    }
+
+    private long elapsed(final long nowNanos) {
+        return Math.max(0, nowNanos - startNanos);
+    }
+
+    /**
+     * The windows of one product. Orders of one product complete on the shards
+     * of many machines, so a bucket is claimed for its period with a CAS and
+     * counted into with atomic adds. The recorder that moves a bucket to a new
+     * period zeroes it while it is marked as resetting, the recorders of that
+     * period wait for it; an order still counting into the bucket of the
+     * previous lap may end up in the new period.
+     */
+    private static final class ProductSales {
+        private final AtomicLongArray periods = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray orders = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray items = new AtomicLongArray(BUCKETS);
+
+        ProductSales() {
+            for (int i = 0; i < BUCKETS; i++) {
+                periods.set(i, UNUSED);
+            }
+        }
+
+        void record(final long elapsedNanos, final long itemCount) {
+            for (Window window : WINDOWS) {
+                final long period = elapsedNanos / window.bucketNanos;
+                final int i = WINDOW_OFFSETS[window.ordinal()] + (int) (period % window.buckets);
+                for (;;) {
+                    final long seen = periods.get(i);
+                    if (seen >= period) {
+                        // the bucket counts this period, or a later one the order is late for
+                        break;
+                    }
+                    if (seen == RESETTING) {
+                        Thread.yield();
+                    } else if (periods.compareAndSet(i, seen, RESETTING)) {
+                        orders.set(i, 0);
+                        items.set(i, 0);
+                        periods.set(i, period);
+                        break;
+                    }
+                }
+                orders.incrementAndGet(i);
+                items.addAndGet(i, itemCount);
+            }
+        }
+
+        Sales read(final Window window, final long elapsedNanos, final long coveredNanos) {
+            final long current = elapsedNanos / window.bucketNanos;
+            final int offset = WINDOW_OFFSETS[window.ordinal()];
+            long orderCount = 0;
+            long itemCount = 0;
+            for (int i = offset; i < offset + window.buckets; i++) {
+                if (periods.get(i) > current - window.buckets) {
+                    orderCount += orders.get(i);
+                    itemCount += items.get(i);
+                }
+            }
+            return new Sales(orderCount, itemCount, coveredNanos);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Fixed set of single-threaded executors. Work for one key is always run on the
+ * same shard, so it executes in submission order, while different shards run in
+ * parallel.
+ */
+public class ShardedExecutor implements AutoCloseable {
+
+    private final ThreadPoolExecutor[] shards;
+
+    /**
+     * @param shardCount number of shards, 0 for one shard per available processor
+     */
+    public ShardedExecutor(final int shardCount) {
+        final int count = shardCount > 0 ? shardCount : Runtime.getRuntime().availableProcessors();
+        shards = new ThreadPoolExecutor[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setNameFormat("vendingmachine-shard-" + i).setDaemon(true).build(),
+                    new ThreadPoolExecutor.DiscardPolicy());
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return the shard work for {@code key} is pinned to
+     */
+    public int shardOf(final Object key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % shards.length;
+    }
+
+    public void execute(final int shard, final Runnable task) {
+        shards[shard].execute(task);
+    }
+
+    public <T> Future<T> submit(final int shard, final Callable<T> task) {
+        return shards[shard].submit(task);
+    }
+
+    public ExecutorService getShard(final int shard) {
+        return shards[shard];
+    }
+
+    /**
+     * @return number of tasks waiting for a shard thread, over all shards
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor shard : shards) {
+            depth += shard.getQueue().size();
+        }
+        return depth;
+    }
+
+    /**
+     * Runs the tasks already submitted and drops those submitted from now on.
+     * Their owners have to be done with them by then.
+     */
+    @Override
+    public void close() {
+        for (ExecutorService shard : shards) {
+            shard.shutdown();
+        }
+    }
+
+    /**
+     * Waits for the tasks already submitted to finish.
+     *
+     * @return true if all shards terminated within the timeout
+     */
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ExecutorService shard : shards) {
+            if (!shard.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
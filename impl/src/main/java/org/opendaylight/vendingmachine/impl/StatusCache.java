@@ -0,0 +1,118 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.opendaylight.controller.md.sal.binding.api.DataChangeListener;
+import org.opendaylight.controller.md.sal.common.api.data.AsyncDataChangeEvent;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Vendingmachine;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Vendingmachine.VendingmachineStatus;
+import org.opendaylight.yangtools.yang.binding.DataObject;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory copy of the vendingmachine-status leaf of the operational
+ * vendingmachine container, so that serialized orders do not have to read the
+ * datastore to learn whether the machine is free.
+ *
+ * <p>While the copy is valid, an order takes the machine with a compare-and-set
+ * from availability to empty. The provider announces each status it writes
+ * before submitting it; the change listener matches the changes it is notified
+ * of against those writes. A status change nobody announced was made outside
+ * the provider: the copy is invalidated and orders go back to reading the
+ * datastore until the provider commits a status of its own again.
+ */
+public class StatusCache implements DataChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StatusCache.class);
+
+    /**
+     * Announced writes kept waiting for their change notification. Older ones
+     * are dropped, a lost notification then only costs an invalidation.
+     */
+    private static final int MAX_PENDING_WRITES = 64;
+
+    private final AtomicReference<VendingmachineStatus> status = new AtomicReference<>();
+    private final Queue<VendingmachineStatus> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @return the cached status, null if the copy is not valid
+     */
+    public VendingmachineStatus get() {
+        return status.get();
+    }
+
+    /**
+     * Takes the machine for an order.
+     *
+     * @return true if the cached status went from availability to empty
+     */
+    public boolean tryAcquire() {
+        return status.compareAndSet(VendingmachineStatus.Availability, VendingmachineStatus.Empty);
+    }
+
+    /**
+     * Gives back a machine taken by {@link #tryAcquire()} for an order that was
+     * turned down before its status was written.
+     */
+    public void release() {
+        status.compareAndSet(VendingmachineStatus.Empty, VendingmachineStatus.Availability);
+    }
+
+    /**
+     * Announces a status the provider is about to write.
+     */
+    public void writing(final VendingmachineStatus written) {
+        pendingWrites.add(written);
+        while (pendingWrites.size() > MAX_PENDING_WRITES) {
+            pendingWrites.poll();
+        }
+    }
+
+    /**
+     * Records a status the provider committed.
+     */
+    public void committed(final VendingmachineStatus committed) {
+        status.set(committed);
+    }
+
+    public void invalidate() {
+        pendingWrites.clear();
+        status.set(null);
+    }
+
+    @Override
+    public void onDataChanged(final AsyncDataChangeEvent<InstanceIdentifier<?>, DataObject> change) {
+        final VendingmachineStatus before = statusOf(change.getOriginalSubtree());
+        final VendingmachineStatus after = statusOf(change.getUpdatedSubtree());
+        if (before == after) {
+            // the stock changed, not the status
+            return;
+        }
+
+        if (after != null && after == pendingWrites.peek()) {
+            pendingWrites.poll();
+            return;
+        }
+
+        if (status.get() != null) {
+            LOG.info("Vendingmachine status changed from {} to {} outside the provider, reading it from the datastore",
+                    before, after);
+        }
+        invalidate();
+    }
+
+    private static VendingmachineStatus statusOf(final DataObject data) {
+        return data instanceof Vendingmachine ? ((Vendingmachine) data).getVendingmachineStatus() : null;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Dispenses items by waiting a fixed time per item, without parking a thread
+ * per dispense.
+ *
+ * <p>Every product slot of every machine dispenses one order at a time: a
+ * dispense starts when the previous one of its slot is done, so different slots
+ * dispense in parallel. A dispense only books the slot with a CAS on the time
+ * the slot becomes free and schedules its completion on a single timer thread.
+ */
+public class TimedDispenseScheduler implements DispenseScheduler {
+
+    private static final Runnable DONE = new Runnable() {
+        @Override
+        public void run() {
+            // the completion is the point, there is nothing to do
+        }
+    };
+
+    private final ScheduledThreadPoolExecutor timer;
+    private final Map<Class<? extends VendingProducts>, Long> nanosPerItem;
+    private final long defaultNanosPerItem;
+    // per machine, the nanoTime at which each of its product slots is free again
+    private final ConcurrentMap<MachineContext, AtomicLongArray> slotsFreeAt = new ConcurrentHashMap<>();
+
+    /**
+     * @param millisPerItem dispense time of one item of each product
+     * @param defaultMillisPerItem dispense time of one item of a product missing
+     *        from {@code millisPerItem}
+     */
+    public TimedDispenseScheduler(final Map<Class<? extends VendingProducts>, Long> millisPerItem,
+            final long defaultMillisPerItem) {
+        nanosPerItem = new HashMap<>();
+        for (Map.Entry<Class<? extends VendingProducts>, Long> entry : millisPerItem.entrySet()) {
+            nanosPerItem.put(entry.getKey(), TimeUnit.MILLISECONDS.toNanos(entry.getValue()));
+        }
+        defaultNanosPerItem = TimeUnit.MILLISECONDS.toNanos(defaultMillisPerItem);
+
+        timer = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("vendingmachine-dispense-%d").setDaemon(true).build());
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    public ListenableFuture<Void> dispense(final MachineContext machine, final Class<? extends VendingProducts> product,
+            final long items) {
+        final long duration = items * nanosPerItemOf(product);
+        final AtomicLongArray freeAt = slotsOf(machine);
+        final int slot = ProductInventory.PRODUCTS.indexOf(product);
+
+        final long now = System.nanoTime();
+        long done;
+        for (;;) {
+            final long free = freeAt.get(slot);
+            done = (free - now > 0 ? free : now) + duration;
+            if (freeAt.compareAndSet(slot, free, done)) {
+                break;
+            }
+        }
+
+        final ListenableFutureTask<Void> dispensed = ListenableFutureTask.create(DONE, null);
+        try {
+            timer.schedule(dispensed, done - now, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return dispensed;
+    }
+
+    private long nanosPerItemOf(final Class<? extends VendingProducts> product) {
+        final Long nanos = nanosPerItem.get(product);
+        return nanos != null ? nanos : defaultNanosPerItem;
+    }
+
+    private AtomicLongArray slotsOf(final MachineContext machine) {
+        AtomicLongArray freeAt = slotsFreeAt.get(machine);
+        if (freeAt == null) {
+            final long now = System.nanoTime();
+            final long[] initial = new long[ProductInventory.PRODUCTS.size()];
+            for (int i = 0; i < initial.length; i++) {
+                initial[i] = now;
+            }
+            final AtomicLongArray created = new AtomicLongArray(initial);
+            freeAt = slotsFreeAt.putIfAbsent(machine, created);
+            if (freeAt == null) {
+                freeAt = created;
+            }
+        }
+        return freeAt;
+    }
+
+    /**
+     * @return dispenses scheduled and not done yet
+     */
+    public int getPendingDispenses() {
+        return timer.getQueue().size();
+    }
+
+    @Override
+    public void close() {
+        // delayed tasks still run after shutdown, so pending dispenses complete
+        timer.shutdown();
+    }
+}
@@ -7,34 +7,87 @@
  */
 package org.opendaylight.vendingmachine.impl;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.opendaylight.controller.md.sal.binding.api.DataBroker;
 import org.opendaylight.controller.md.sal.binding.api.DataChangeListener;
+import org.opendaylight.controller.md.sal.binding.api.ReadOnlyTransaction;
 import org.opendaylight.controller.md.sal.binding.api.ReadWriteTransaction;
 import org.opendaylight.controller.md.sal.binding.api.WriteTransaction;
 import org.opendaylight.controller.md.sal.common.api.data.AsyncDataBroker.DataChangeScope;
 import org.opendaylight.controller.md.sal.common.api.data.AsyncDataChangeEvent;
 import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
 import org.opendaylight.controller.md.sal.common.api.data.OptimisticLockFailedException;
+import org.opendaylight.controller.md.sal.common.api.data.ReadFailedException;
 import org.opendaylight.controller.md.sal.common.api.data.TransactionCommitFailedException;
 import org.opendaylight.controller.sal.binding.api.BindingAwareBroker;
 import org.opendaylight.controller.sal.binding.api.BindingAwareBroker.ProviderContext;
 import org.opendaylight.controller.sal.binding.api.BindingAwareProvider;
 import org.opendaylight.controller.sal.binding.api.NotificationProviderService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.impl.rev141210.VendingmachineRuntimeMXBean;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.impl.rev141210.VendingmachineRuntimeRegistration;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.DisplayString;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.ExportInventoryInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.ExportInventoryOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.ExportInventoryOutputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Fleet;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.GetSalesStatisticsOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.GetSalesStatisticsOutputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.ImportInventoryInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.ImportInventoryOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.ImportInventoryOutputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.InventoryFormat;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MachineRef;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrdersInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrdersOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrdersOutputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.OrderItem;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.RefullItemInput;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Vendingmachine;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Vendingmachine.VendingmachineStatus;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingmachineBuilder;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingmachineOutOfItemsBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingmachineService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Water;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.fleet.Machine;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.get.sales.statistics.output.ProductSales;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.get.sales.statistics.output.ProductSalesBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.get.sales.statistics.output.product.sales.LastDayBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.get.sales.statistics.output.product.sales.LastHourBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.get.sales.statistics.output.product.sales.LastMinuteBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.make.orders.input.Order;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.make.orders.output.OrderResult;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.make.orders.output.OrderResultBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.product.stock.ProductSlot;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.vendingmachine.ProductCapacity;
 import org.opendaylight.yangtools.concepts.ListenerRegistration;
 import org.opendaylight.yangtools.yang.binding.DataObject;
 import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
@@ -46,45 +99,420 @@ import org.opendaylight.yangtools.yang.common.RpcResultBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 
 
-public class VendingmachineProvider implements BindingAwareProvider, VendingmachineService,DataChangeListener, AutoCloseable  {
+public class VendingmachineProvider implements BindingAwareProvider, VendingmachineService,DataChangeListener, VendingmachineRuntimeMXBean, AutoCloseable  {
 	
 	public static final InstanceIdentifier<Vendingmachine> VENDINGMACHINE_IID = InstanceIdentifier.builder(Vendingmachine.class).build();
+	private static final InstanceIdentifier<Fleet> FLEET_IID = InstanceIdentifier.builder(Fleet.class).build();
 	
 	private static final Logger LOG = LoggerFactory.getLogger(VendingmachineProvider.class);
     private static final DisplayString vendingmachine_MANUFACTURE = new DisplayString ("OpenDayLight");
     private static final DisplayString vendingmachine_MODEL_NUMBER = new DisplayString ("Model 1 - Binding Aware");
     
+    /*
+     * DataObjects, errors and results are immutable, so the ones every order
+     * needs are built once and shared instead of built per order.
+     */
+    private static final Map<VendingmachineStatus, Vendingmachine> VENDINGMACHINE_BY_STATUS = buildVendingmachines();
+    private static final RpcError OUT_OF_STOCK_ERROR = RpcResultBuilder.newError(ErrorType.APPLICATION,"Prosses denied", "the Vending Machine in Out of item", "out-of-stock", null, null);
+    private static final RpcError IN_USE_ERROR = RpcResultBuilder.newError(ErrorType.APPLICATION, "In-Progress", "Vending Machine is busy", null, null, null);
+    private static final RpcError TOO_MANY_IN_FLIGHT_ERROR = RpcResultBuilder.newError(ErrorType.APPLICATION, "resource-denied", "Too many orders in flight", null, null, null);
+    private static final RpcResult<Void> ORDER_MADE = RpcResultBuilder.<Void>success().build();
+    private static final RpcResult<Void> OUT_OF_STOCK = RpcResultBuilder.<Void>failed().withRpcError(OUT_OF_STOCK_ERROR).build();
+    private static final RpcResult<Void> IN_USE = RpcResultBuilder.<Void>failed().withRpcError(IN_USE_ERROR).build();
+    private static final RpcResult<Void> TOO_MANY_IN_FLIGHT = RpcResultBuilder.<Void>failed().withRpcError(TOO_MANY_IN_FLIGHT_ERROR).build();
+    private static final RpcError DEADLINE_EXPIRED_ERROR = RpcResultBuilder.newError(ErrorType.APPLICATION, "operation-failed", "The order did not start dispensing by its deadline", "deadline-expired", null, null);
+    private static final RpcResult<Void> DEADLINE_EXPIRED = RpcResultBuilder.<Void>failed().withRpcError(DEADLINE_EXPIRED_ERROR).build();
+    
     private ProviderContext providerContext;
     private DataBroker dataProvider ;
     private ListenerRegistration<DataChangeListener> dcReg;
+    private ListenerRegistration<DataChangeListener> statusReg;
+    private final StatusCache statusCache = new StatusCache();
     private BindingAwareBroker.RpcRegistration<VendingmachineService> rpcReg;
     
     private NotificationProviderService notificationService;
-    private final ExecutorService executor;
+    private ShardedExecutor shards;
+    private long orderShards = 0;
     
     private final AtomicReference<Future<?>> currentMakeOrderTask = new AtomicReference<>();
-    private final AtomicLong amountOfProductInStock = new AtomicLong(10);
-    private final AtomicLong ordersMade = new AtomicLong(0);
+    private final ConcurrentMap<String, MachineContext> machines = new ConcurrentHashMap<>();
+    private MachineContext defaultMachine;
     private final AtomicLong maxOrderItems = new AtomicLong(3);
+    private volatile Map<Class<? extends VendingProducts>, Long> productCapacities = Collections.emptyMap();
+    
+    private volatile boolean concurrentOrders;
+    private volatile int maxOrdersInFlight = 16;
+    
+    private final OrderStats stats = new OrderStats();
+    private final SalesAnalytics salesAnalytics = new SalesAnalytics(System.nanoTime());
+    private VendingmachineRuntimeRegistration runtimeReg;
+    
+    private OperationalStateWriter stateWriter;
+    private long operationalWriteInterval = 100;
+    private long operationalWriteBatchSize = 256;
+    
+    private NotificationStage notifications;
+    private long lowStockThreshold = 2;
+    private long notificationWindow = 100;
+    
+    private int orderQueueCapacity = 0;
+    private long orderQueueTimeout = 1000;
+    private ScheduledExecutorService queueTimer;
+    private ScheduledThreadPoolExecutor deadlineTimer;
+    private long shutdownTimeout = 5000;
+    private OrderDedupCache orderDedup;
+    private long orderDedupSize = 10000;
+    private long orderDedupExpiry = 600000;
+    /*
+     * Orders taken and not answered yet, answered by close() if it cannot wait
+     * for them: mapped to NOT_DISPENSING, then to their task once they start
+     * dispensing, so that close() can put their items back.
+     */
+    private final ConcurrentMap<SettableFuture<RpcResult<Void>>, Object> pendingOrders = new ConcurrentHashMap<>();
+    private static final Object NOT_DISPENSING = new Object();
+    private static final AtomicIntegerFieldUpdater<makeOrderTask> DISPENSE_SETTLED =
+    		AtomicIntegerFieldUpdater.newUpdater(makeOrderTask.class, "dispenseSettled");
+    // set once close() stopped waiting for the orders in flight
+    private volatile boolean closing;
+    
+    /**
+     * Queue deadline of an order that has not been queued yet.
+     */
+    private static final long NOT_QUEUED = Long.MIN_VALUE;
+    
+    private OrderJournal journal;
+    private String journalDirectory = "";
+    private long journalSize = 64;
+    
+    private AuditTrail audit;
+    private String auditDirectory = "";
+    private long auditBufferSize = 65536;
+    private long auditFileSize = 64;
+    private long auditFiles = 4;
+    private boolean auditBlockWhenFull;
+    
+    private DispenseScheduler dispenseScheduler;
+    private final Map<Class<? extends VendingProducts>, Long> dispenseTimes = new HashMap<>();
+
+    private String nodeId = "";
+    private long heartbeatInterval = 1000;
+    private long memberTimeout = 5000;
+    private OrderForwarder orderForwarder = new RejectingOrderForwarder();
+    private ClusterMembership membership;
+
+    private long importBatchSize = 1000;
+    private ListeningExecutorService bulkExecutor;
+
+    /**
+     * Stock of every slot of a machine when it joins the fleet.
+     */
+    private static final long INITIAL_SLOT_STOCK = 10;
+    
+    /**
+     * Dispense time of one item, in milliseconds, of a product without a
+     * configured dispense time.
+     */
+    private static final long DEFAULT_DISPENSE_TIME = 2;
     
     public VendingmachineProvider(){
-    	executor = Executors.newFixedThreadPool(1);
+    }
+    
+    /**
+     * Selects how orders are admitted. When false (the default) every order is
+     * serialized through the vendingmachine-status leaf of the operational
+     * datastore. When true, admission and stock reservation happen in memory
+     * and up to {@link #setMaxOrdersInFlight(long)} orders are processed at once;
+     * the datastore only reflects the resulting status.
+     */
+    public void setConcurrentOrders(final boolean concurrentOrders){
+    	this.concurrentOrders = concurrentOrders;
+    }
+    
+    /**
+     * Sets the number of orders each machine may have in flight at once when
+     * orders are processed concurrently.
+     */
+    public void setMaxOrdersInFlight(final long maxOrdersInFlight){
+    	this.maxOrdersInFlight = (int) Math.min(maxOrdersInFlight, Integer.MAX_VALUE);
+    	for (MachineContext machine : machines.values()){
+    		machine.getOrdersInFlight().setLimit(this.maxOrdersInFlight);
+    	}
+    }
+    
+    /**
+     * Sets the number of single-threaded shards the machines of the fleet are
+     * spread over, 0 for one shard per available processor. A machine is pinned
+     * to one shard, so its orders never wait for the orders of a machine on
+     * another shard.
+     */
+    public void setOrderShards(final long orderShards){
+    	this.orderShards = orderShards;
+    }
+    
+    /**
+     * Hands over the registration of this provider as the module's runtime
+     * bean, to be closed with the provider.
+     */
+    public void setRuntimeRegistration(final VendingmachineRuntimeRegistration runtimeReg){
+    	this.runtimeReg = runtimeReg;
+    }
+    
+    /**
+     * Sets the time, in milliseconds, a slot takes to dispense one item of
+     * {@code product}. Only used by the default dispense scheduler.
+     */
+    public void setDispenseTime(final Class<? extends VendingProducts> product, final long millis){
+    	dispenseTimes.put(product, millis);
+    }
+    
+    /**
+     * Replaces the default timed dispense scheduler. Must be called before the
+     * session is initiated; the scheduler is closed with the provider.
+     */
+    public void setDispenseScheduler(final DispenseScheduler dispenseScheduler){
+    	this.dispenseScheduler = dispenseScheduler;
+    }
+    
+    /**
+     * Sets the stock at or below which a low stock notification is sent for a
+     * product.
+     */
+    public void setLowStockThreshold(final long lowStockThreshold){
+    	this.lowStockThreshold = lowStockThreshold;
+    }
+    
+    /**
+     * Sets the time, in milliseconds, over which stock changes are collapsed
+     * into one round of notifications.
+     */
+    public void setNotificationWindow(final long notificationWindow){
+    	this.notificationWindow = notificationWindow;
+    }
+    
+    /**
+     * Sets the directory of the order journal. Stock and order counts are
+     * recovered from it when the session is initiated; empty disables the
+     * journal.
+     */
+    public void setJournalDirectory(final String journalDirectory){
+    	this.journalDirectory = journalDirectory != null ? journalDirectory : "";
+    }
+    
+    /**
+     * Sets the size, in megabytes, of the order journal file.
+     */
+    public void setJournalSize(final long journalSize){
+    	this.journalSize = journalSize;
+    }
+    
+    /**
+     * Sets the directory of the audit trail of the orders and refills, empty
+     * (the default) to keep no trail.
+     */
+    public void setAuditDirectory(final String auditDirectory){
+    	this.auditDirectory = auditDirectory != null ? auditDirectory : "";
+    }
+    
+    /**
+     * Sets the number of audit events held in memory before they are written.
+     */
+    public void setAuditBufferSize(final long auditBufferSize){
+    	this.auditBufferSize = auditBufferSize;
+    }
+    
+    /**
+     * Sets the size, in megabytes, at which the audit file is rolled over.
+     */
+    public void setAuditFileSize(final long auditFileSize){
+    	this.auditFileSize = auditFileSize;
+    }
+    
+    /**
+     * Sets the number of audit files kept, the current one included.
+     */
+    public void setAuditFiles(final long auditFiles){
+    	this.auditFiles = auditFiles;
+    }
+    
+    /**
+     * Selects whether orders and refills wait for room in a full audit buffer
+     * rather than drop their audit event (the default).
+     */
+    public void setAuditBlockWhenFull(final boolean auditBlockWhenFull){
+    	this.auditBlockWhenFull = auditBlockWhenFull;
+    }
+    
+    /**
+     * Sets the number of orders that may wait for a busy machine, 0 to turn
+     * orders down as soon as their machine is busy.
+     */
+    public void setOrderQueueCapacity(final long orderQueueCapacity){
+    	this.orderQueueCapacity = (int) Math.min(orderQueueCapacity, Integer.MAX_VALUE);
+    	for (MachineContext machine : machines.values()){
+    		machine.getOrderQueue().setCapacity(this.orderQueueCapacity);
+    	}
+    }
+    
+    /**
+     * Sets the time, in milliseconds, an order may wait in the queue of its
+     * machine before it is turned down.
+     */
+    public void setOrderQueueTimeout(final long orderQueueTimeout){
+    	this.orderQueueTimeout = orderQueueTimeout;
+    }
+    
+    /**
+     * Sets the number of recent orders whose client-order-id, and outcome, are
+     * remembered to answer orders submitted again.
+     */
+    public void setOrderDedupSize(final long orderDedupSize){
+    	this.orderDedupSize = orderDedupSize;
+    }
+    
+    /**
+     * Sets the time, in milliseconds, the outcome of an order with a
+     * client-order-id is remembered.
+     */
+    public void setOrderDedupExpiry(final long orderDedupExpiry){
+    	this.orderDedupExpiry = orderDedupExpiry;
+    }
+    
+    /**
+     * Sets the time, in milliseconds, closing the provider waits for the orders
+     * in flight to complete before it turns them down.
+     */
+    public void setShutdownTimeout(final long shutdownTimeout){
+    	this.shutdownTimeout = shutdownTimeout;
+    }
+    
+    /**
+     * Sets the name of this node among the controller nodes sharing the fleet.
+     * Each machine is then owned by one live node and requests for it are
+     * routed to that node; empty (the default) for a single node owning every
+     * machine.
+     */
+    public void setNodeId(final String nodeId){
+    	this.nodeId = nodeId != null ? nodeId : "";
+    }
+
+    /**
+     * Sets the time, in milliseconds, between two heartbeats of this node.
+     */
+    public void setHeartbeatInterval(final long heartbeatInterval){
+    	this.heartbeatInterval = heartbeatInterval;
+    }
+
+    /**
+     * Sets the time, in milliseconds, without a heartbeat after which a node is
+     * considered failed and its machines are taken over.
+     */
+    public void setMemberTimeout(final long memberTimeout){
+    	this.memberTimeout = memberTimeout;
+    }
+
+    /**
+     * Sets the number of machines an inventory import sets the stock of before
+     * it commits their stock to the datastore.
+     */
+    public void setImportBatchSize(final long importBatchSize){
+    	this.importBatchSize = Math.max(1, importBatchSize);
+    }
+
+    /**
+     * Replaces the forwarder of requests for machines owned by another node,
+     * which by default turns them down with the owner's node-id.
+     */
+    public void setOrderForwarder(final OrderForwarder orderForwarder){
+    	this.orderForwarder = orderForwarder;
+    }
+
+    public OrderStats getOrderStats(){
+    	return stats;
+    }
+
+    /**
+     * @return the live cluster members as seen from this node, empty without
+     *         clustering
+     */
+    public List<String> getLiveMembers(){
+    	return membership != null ? membership.getLiveMembers() : Collections.<String>emptyList();
+    }
+
+    /**
+     * Sets how often, in milliseconds, coalesced stock and status changes are
+     * written to the operational datastore.
+     */
+    public void setOperationalWriteInterval(final long operationalWriteInterval){
+    	this.operationalWriteInterval = operationalWriteInterval;
+    }
+    
+    /**
+     * Sets the number of pending changes that triggers a write before the
+     * write interval has elapsed.
+     */
+    public void setOperationalWriteBatchSize(final long operationalWriteBatchSize){
+    	this.operationalWriteBatchSize = operationalWriteBatchSize;
     }
    
 	@Override
     public void close() throws Exception {
+		if (runtimeReg != null){
+			runtimeReg.close();
+		}
 		if (dataProvider != null){
-			executor.shutdown();
+			// no new requests, then the orders taken get a bounded time to complete
+			rpcReg.close();
+			if (queueTimer != null){
+				queueTimer.shutdownNow();
+			}
+			bulkExecutor.shutdownNow();
+			for (MachineContext machine : machines.values()){
+				for (OrderQueue.Entry queued : machine.getOrderQueue().drain()){
+					queued.getFutureResult().set(ProviderClosed());
+				}
+			}
+			awaitPendingOrders();
+			deadlineTimer.shutdownNow();
+			dispenseScheduler.close();
+			// every order is settled, the completions still to come have nothing left to do
+			shards.close();
+			if (membership != null){
+				// the nodes taking the machines over start from the stock written last
+				try {
+					stateWriter.flush().get(memberTimeout, TimeUnit.MILLISECONDS);
+				}
+				catch (Exception e){
+					LOG.warn("Failed to write the stock before leaving the cluster", e);
+				}
+				membership.close();
+			}
+			stateWriter.close();
+			notifications.close();
+			if (journal != null){
+				try {
+					// the orders put back by awaitPendingOrders() compensate their records once these are durable
+					journal.sync().get(shutdownTimeout, TimeUnit.MILLISECONDS);
+				}
+				catch (Exception e){
+					LOG.warn("Failed to sync the order journal before closing it", e);
+				}
+				journal.close();
+			}
+			if (audit != null){
+				audit.close();
+			}
 		
 		WriteTransaction tx = dataProvider.newWriteOnlyTransaction();
 		Futures.addCallback(tx.submit(), new FutureCallback<Void>(){
@@ -102,8 +530,8 @@ public class VendingmachineProvider implements BindingAwareProvider, Vendingmach
 		});
     	
         dcReg.close();
-        rpcReg.close();
-        LOG.info("VendingmachineProvider Closed");
+        statusReg.close();
+        LOG.debug("VendingmachineProvider Closed");
         }
     }
        
@@ -115,14 +543,47 @@ public class VendingmachineProvider implements BindingAwareProvider, Vendingmach
     	this.dataProvider = session.getSALService(DataBroker.class);
     	this.notificationService = session.getSALService(NotificationProviderService.class);
       	if (dataProvider != null){
+    	shards = new ShardedExecutor((int) orderShards);
+    	if (dispenseScheduler == null){
+    		dispenseScheduler = new TimedDispenseScheduler(dispenseTimes, DEFAULT_DISPENSE_TIME);
+    	}
+    	stateWriter = new OperationalStateWriter(dataProvider, concurrentOrders, operationalWriteInterval, operationalWriteBatchSize, isClustered() ? nodeId : null);
+    	notifications = new NotificationStage(notificationService, lowStockThreshold, notificationWindow);
+    	if (!journalDirectory.isEmpty()){
+    		openJournal();
+    	}
+    	if (!auditDirectory.isEmpty()){
+    		openAudit();
+    	}
+    	defaultMachine = getOrCreateMachine(MachineContext.DEFAULT_MACHINE_ID, initialOwnership());
+    	if (orderQueueCapacity > 0){
+    		startQueueTimer();
+    	}
+    	orderDedup = new OrderDedupCache(orderDedupSize, orderDedupExpiry);
+    	deadlineTimer = new ScheduledThreadPoolExecutor(1,
+    			new ThreadFactoryBuilder().setNameFormat("vendingmachine-deadline-%d").setDaemon(true).build());
+    	deadlineTimer.setRemoveOnCancelPolicy(true);
+    	bulkExecutor = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor(
+    			new ThreadFactoryBuilder().setNameFormat("vendingmachine-bulk-%d").setDaemon(true).build()));
+    	if (isClustered()){
+    		membership = new ClusterMembership(dataProvider, nodeId, heartbeatInterval, memberTimeout, new ClusterMembership.Listener(){
+
+    			@Override
+    			public void membersChanged(final List<String> liveMembers){
+    				rebalance(liveMembers);
+    			}
+    		});
+    	}
+    	
     	dcReg = dataProvider.registerDataChangeListener(LogicalDatastoreType.CONFIGURATION, VENDINGMACHINE_IID , this , DataChangeScope.SUBTREE);
+    	statusReg = dataProvider.registerDataChangeListener(LogicalDatastoreType.OPERATIONAL, VENDINGMACHINE_IID, statusCache, DataChangeScope.BASE);
     	
     	rpcReg = session.addRpcImplementation(VendingmachineService.class, this);
       	
     	initVendingmachineOperational();
     	initVendingmachineConfiguration();
     	}
-    	LOG.info("onSessionIntitiated: initialization done");
+    	LOG.debug("onSessionIntitiated: initialization done");
       	    	
     }
     
@@ -130,178 +591,1394 @@ public class VendingmachineProvider implements BindingAwareProvider, Vendingmach
     @Override
     public Future<RpcResult<Void>> makeOrder(final MakeOrderInput input){
     
-    	LOG.info("makeOrder: {}", input);
-    	
+    	LOG.debug("makeOrder: {}", input);
+
+    	if (membership != null){
+    		final String owner = remoteOwnerOf(machineIdOf(input));
+    		if (owner != null){
+    			return orderForwarder.forwardOrder(owner, input);
+    		}
+    	}
+    	return makeOwnedOrder(input);
+    }
+
+    /**
+     * Serves an order on this node without forwarding it, the way orders
+     * forwarded by another node are served. Turned down if this node does not
+     * own the machine.
+     */
+    public ListenableFuture<RpcResult<Void>> makeOwnedOrder(final MakeOrderInput input){
+
     	final SettableFuture<RpcResult<Void>> futureResult = SettableFuture.create();
-    	
-    	checkStatusAndMakeOrderItem(input, futureResult, 2);
-    	LOG.info("makeOreder returning...");
+
+    	final String machineId = machineIdOf(input);
+    	if (input.getClientOrderId() != null){
+    		final ListenableFuture<RpcResult<Void>> first = orderDedup.register(machineId, input.getClientOrderId(), futureResult);
+    		if (first != null){
+    			LOG.debug("Order {} of {} submitted again", input.getClientOrderId(), machineId);
+    			return first;
+    		}
+    	}
+    	final MachineContext machine = machines.get(machineId);
+    	if (machine == null){
+    		stats.reject(RejectionReason.UNKNOWN_MACHINE);
+    		futureResult.set(RpcResultBuilder.<Void>failed().withRpcError(UnknownMachineError(machineId)).build());
+    	}
+    	else if (machine.getOwnership() != MachineContext.Ownership.OWNED){
+    		stats.reject(RejectionReason.NOT_OWNER);
+    		futureResult.set(RpcResultBuilder.<Void>failed().withRpcError(NotServedError(machine)).build());
+    	}
+    	else {
+    		final OrderDeadline deadline = input.getDeadline() != null ? startDeadline(input.getDeadline(), futureResult) : null;
+    		trackPending(futureResult);
+    		if (isSerialized(machine)){
+    			checkStatusAndMakeOrderItem(input, futureResult, 2, NOT_QUEUED, deadline);
+    		}
+    		else {
+    			admitOrder(machine, input, futureResult, deadline);
+    		}
+    	}
     	return futureResult;
     }
     
+    /**
+     * Turns the order down once its deadline passes, unless it started
+     * dispensing by then.
+     */
+    private OrderDeadline startDeadline(final long deadlineMillis, final SettableFuture<RpcResult<Void>> futureResult){
+    	final OrderDeadline deadline = new OrderDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis));
+    	final ScheduledFuture<?> timeout = deadlineTimer.schedule(new Runnable(){
+    		
+    		@Override
+    		public void run(){
+    			expire(deadline, futureResult);
+    		}
+    	}, deadlineMillis, TimeUnit.MILLISECONDS);
+    	futureResult.addListener(new Runnable(){
+    		
+    		@Override
+    		public void run(){
+    			timeout.cancel(false);
+    		}
+    	}, MoreExecutors.directExecutor());
+    	return deadline;
+    }
     
+    private void expire(final OrderDeadline deadline, final SettableFuture<RpcResult<Void>> futureResult){
+    	if (deadline.expire()){
+    		stats.reject(RejectionReason.DEADLINE_EXPIRED);
+    		futureResult.set(DEADLINE_EXPIRED);
+    	}
+    }
     
-    @Override
-    public Future<RpcResult<java.lang.Void>> refullItem(final RefullItemInput input){
+    private void trackPending(final SettableFuture<RpcResult<Void>> futureResult){
+    	pendingOrders.put(futureResult, NOT_DISPENSING);
+    	futureResult.addListener(new Runnable(){
+    		
+    		@Override
+    		public void run(){
+    			pendingOrders.remove(futureResult);
+    		}
+    	}, MoreExecutors.directExecutor());
+    }
     
-    	LOG.info("processOrder: {}", input);
-    	
-    	amountOfProductInStock.set(input.getQuantityofproductprovide());
-    	return Futures.immediateFuture( RpcResultBuilder.<Void> success().build());
+    /**
+     * Waits up to the shutdown timeout for the orders taken to be answered,
+     * then turns the rest down as not made. The items of those already
+     * dispensing are put back and their journal records compensated here, the
+     * completion of their dispense is ignored; those that did not start
+     * dispensing yet are put back when they reach their dispense.
+     */
+    private void awaitPendingOrders(){
+    	final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeout);
+    	try {
+    		while (!pendingOrders.isEmpty() && System.nanoTime() - deadline < 0){
+    			Thread.sleep(10);
+    		}
+    	}
+    	catch (InterruptedException e){
+    		Thread.currentThread().interrupt();
+    	}
+    	closing = true;
+    	if (!pendingOrders.isEmpty()){
+    		LOG.warn("Turning down {} orders still in flight after {}ms", pendingOrders.size(), shutdownTimeout);
+    		for (Map.Entry<SettableFuture<RpcResult<Void>>, Object> pending : pendingOrders.entrySet()){
+    			if (pending.getValue() instanceof makeOrderTask){
+    				final makeOrderTask task = (makeOrderTask) pending.getValue();
+    				if (task.settleDispense()){
+    					task.putBack(ProviderClosed());
+    				}
+    			}
+    			else {
+    				pending.getKey().set(ProviderClosed());
+    			}
+    		}
+    	}
     }
     
     
-    public void onDataChanged( final AsyncDataChangeEvent<InstanceIdentifier<?>, DataObject> change ) {
-        DataObject dataObject = change.getUpdatedSubtree();
-        if( dataObject instanceof Vendingmachine ) {
-        	Vendingmachine vendingmachine = (Vendingmachine) dataObject;
-        	
-            LOG.info("onDataChanged - new Vendingmachine config: {}", vendingmachine);
-            
-            
-        } 
-    }
     
-    private void initVendingmachineOperational (){
-    	Vendingmachine vendingmachine = buildVendingmachine(VendingmachineStatus.Availability);
-    			
+    /**
+     * Takes the items of every order of the batch out of stock and commits the
+     * resulting stock with a single write. Orders of a batch are not dispensed
+     * one by one and do not go through the order status handshake. The orders
+     * are counted once all of them are journaled; if one cannot be, the whole
+     * batch is turned down and its items put back.
+     */
+    @Override
+    public Future<RpcResult<MakeOrdersOutput>> makeOrders(final MakeOrdersInput input){
     	
-    	WriteTransaction tx = dataProvider.newWriteOnlyTransaction();
-    	tx.put(LogicalDatastoreType.OPERATIONAL, VENDINGMACHINE_IID, vendingmachine);
+    	final List<Order> orders = input.getOrder() != null ? input.getOrder() : Collections.<Order>emptyList();
+    	LOG.debug("makeOrders: {} orders", orders.size());
     	
-    	Futures.addCallback(tx.submit(), new FutureCallback<Void>(){
+    	final long maxItems = maxOrderItems.get();
+    	final List<OrderResult> results = new ArrayList<>(orders.size());
+    	final List<BatchOrder> made = new ArrayList<>();
+    	final List<ListenableFuture<Void>> journaled = new ArrayList<>();
+    	// outcomes of the orders made by this batch, only when some have a client-order-id
+    	Set<ListenableFuture<RpcResult<Void>>> batchOutcomes = null;
+    	long sequence = 0;
+    	for (Order order : orders){
+    		final String machineId = machineIdOf(order);
+    		final MachineContext machine = machines.get(machineId);
+    		final Class<? extends VendingProducts> product = productOf(order);
+    		final long itemCount = itemCountOf(order);
+    		final OrderResultBuilder result = new OrderResultBuilder()
+    				.setSequence(sequence++)
+    				.setClientOrderId(order.getClientOrderId());
+    		
+    		SettableFuture<RpcResult<Void>> outcome = null;
+    		if (order.getClientOrderId() != null){
+    			outcome = SettableFuture.create();
+    			final ListenableFuture<RpcResult<Void>> first = orderDedup.register(machineId, order.getClientOrderId(), outcome);
+    			if (first != null){
+    				// made earlier in this batch, it stands or falls with the batch
+    				results.add(batchOutcomes != null && batchOutcomes.contains(first)
+    						? result.setSuccess(true).build() : duplicateOrderResult(result, first));
+    				continue;
+    			}
+    		}
+    		
+    		RpcError error = null;
+    		if (machine == null){
+    			final String owner = membership != null ? remoteOwnerOf(machineId) : null;
+    			if (owner != null){
+    				// a batch is not split over nodes, the client sends these orders to their owner
+    				stats.reject(RejectionReason.NOT_OWNER);
+    				error = RejectingOrderForwarder.notOwnerError(owner);
+    			}
+    			else {
+    				stats.reject(RejectionReason.UNKNOWN_MACHINE);
+    				error = UnknownMachineError(machineId);
+    			}
+    		}
+    		else if (machine.getOwnership() != MachineContext.Ownership.OWNED){
+    			stats.reject(RejectionReason.NOT_OWNER);
+    			error = NotServedError(machine);
+    		}
+    		else if (itemCount > maxItems){
+    			stats.reject(RejectionReason.ORDER_TOO_LARGE);
+    			error = MakeOrderTooLargeError(maxItems);
+    		}
+    		else if (!machine.getInventory().reserve(product, itemCount)){
+    			stats.reject(RejectionReason.OUT_OF_STOCK);
+    			error = OUT_OF_STOCK_ERROR;
+    		}
+    		
+    		if (error == null){
+    			final BatchOrder batchOrder = new BatchOrder(machine, product, itemCount, journalOrder(machine, product, itemCount), outcome);
+    			made.add(batchOrder);
+    			journaled.add(batchOrder.journaled);
+    			if (outcome != null){
+    				if (batchOutcomes == null){
+    					batchOutcomes = new HashSet<>();
+    				}
+    				batchOutcomes.add(outcome);
+    			}
+    			result.setSuccess(true);
+    		}
+    		else {
+    			result.setSuccess(false).setErrorTag(error.getTag()).setErrorMessage(error.getMessage());
+    			if (outcome != null){
+    				outcome.set(RpcResultBuilder.<Void>failed().withRpcError(error).build());
+    			}
+    		}
+    		results.add(result.build());
+    	}
+    	
+    	LOG.debug("makeOrders: {} orders made", made.size());
+    	
+    	final MakeOrdersOutput output = new MakeOrdersOutputBuilder().setOrderResult(results).build();
+    	final SettableFuture<RpcResult<MakeOrdersOutput>> futureResult = SettableFuture.create();
+    	Futures.addCallback(Futures.allAsList(journaled), new FutureCallback<List<Void>>(){
+    		
     		@Override
-    		public void onSuccess (final Void result){
-    			LOG.info("initVendingmachineOperational: Transaction succeeded");
+    		public void onSuccess (final List<Void> result){
+    			for (BatchOrder batchOrder : made){
+    				batchOrder.made();
+    			}
+    			commitOrders(output, futureResult);
     		}
+    		
     		@Override
     		public void onFailure (final Throwable t){
-    			LOG.info("initVendingmachineOperational: Transaction failed");
+    			LOG.error("Failed to journal a batch of orders", t);
+    			final RpcError error = JournalError(t);
+    			for (BatchOrder batchOrder : made){
+    				batchOrder.putBack(error);
+    			}
+    			futureResult.set(RpcResultBuilder.<MakeOrdersOutput>failed().withRpcError(error).build());
     		}
-    		
     	});
-    	LOG.error("initVendingmachineOperational: operational status populated: {}", vendingmachine);
+    	return futureResult;
     }
     
-    private void initVendingmachineConfiguration(){
-    	Vendingmachine vendingmachine = new VendingmachineBuilder().setNumberOfProductsAvailable((long)8).build();
+    /**
+     * An order of a batch whose items were taken out of stock, counted once
+     * the whole batch is journaled.
+     */
+    private class BatchOrder{
     	
-    	WriteTransaction tx = dataProvider.newWriteOnlyTransaction();
-    	tx.put(LogicalDatastoreType.CONFIGURATION, VENDINGMACHINE_IID, vendingmachine);
+    	private final MachineContext machine;
+    	private final Class<? extends VendingProducts> product;
+    	private final long itemCount;
+    	private final ListenableFuture<Void> journaled;
+    	private final SettableFuture<RpcResult<Void>> outcome;
     	
-    	Futures.addCallback(tx.submit(), new FutureCallback<Void>(){
-    		
+    	BatchOrder(final MachineContext machine, final Class<? extends VendingProducts> product, final long itemCount,
+    			final ListenableFuture<Void> journaled, final SettableFuture<RpcResult<Void>> outcome){
+    		this.machine = machine;
+    		this.product = product;
+    		this.itemCount = itemCount;
+    		this.journaled = journaled;
+    		this.outcome = outcome;
+    	}
+    	
+    	void made(){
+    		machine.getOrdersMade().incrementAndGet();
+    		salesAnalytics.orderMade(product, itemCount, System.nanoTime());
+    		if (audit != null){
+    			audit.record(AuditTrail.EventType.ORDER_MADE, machine.getMachineId(), product, itemCount);
+    		}
+    		stateWriter.stockChanged(machine);
+    		notifications.stockChanged(machine);
+    		if (outcome != null){
+    			outcome.set(ORDER_MADE);
+    		}
+    	}
+    	
+    	void putBack(final RpcError error){
+    		machine.getInventory().release(product, itemCount);
+    		if (audit != null){
+    			audit.record(AuditTrail.EventType.ORDER_FAILED, machine.getMachineId(), product, itemCount);
+    		}
+    		stateWriter.stockChanged(machine);
+    		cancelJournaled(machine, product, itemCount, journaled);
+    		if (outcome != null){
+    			outcome.set(RpcResultBuilder.<Void>failed().withRpcError(error).build());
+    		}
+    	}
+    }
+    
+    /**
+     * Answers an order of a batch submitted before with the outcome of its
+     * first submission, or as in progress while that is not known yet.
+     */
+    private static OrderResult duplicateOrderResult(final OrderResultBuilder result, final ListenableFuture<RpcResult<Void>> first){
+    	if (first.isDone() && OrderDedupCache.isSuccessful(first)){
+    		return result.setSuccess(true).build();
+    	}
+    	// in flight, or turned down and about to be forgotten
+    	return result.setSuccess(false).setErrorTag(IN_USE_ERROR.getTag()).setErrorMessage(IN_USE_ERROR.getMessage()).build();
+    }
+    
+    private void commitOrders(final MakeOrdersOutput output, final SettableFuture<RpcResult<MakeOrdersOutput>> futureResult){
+    	Futures.addCallback(stateWriter.flush(), new FutureCallback<Void>(){
     		
+    		@Override
     		public void onSuccess (final Void result){
-    			LOG.info("initVendingmachineOperational: Transaction succeeded");
+    			futureResult.set(RpcResultBuilder.<MakeOrdersOutput>success(output).build());
     		}
+    		
     		@Override
     		public void onFailure (final Throwable t){
-    			LOG.info("initVendingmachineOperational: Transaction failed");
+    			// the stock in memory is authoritative, the writer retries on its next run
+    			LOG.warn("Failed to commit the stock of a batch of orders", t);
+    			futureResult.set(RpcResultBuilder.<MakeOrdersOutput>success(output)
+    					.withWarning(ErrorType.APPLICATION, "operation-failed", "Stock not yet committed to the datastore").build());
     		}
-    		
     	});
     }
     
-    private Vendingmachine buildVendingmachine (final VendingmachineStatus status){
-    	return new VendingmachineBuilder()
-    			.setVendingmachineManufacturer( vendingmachine_MANUFACTURE )
-    			.setVendingmachineModelNumber( vendingmachine_MODEL_NUMBER )
-    			.setVendingmachineStatus( status )
-    			.build();
-    }
-    private RpcError MakeOrderOutOfStockError (){
-    	return RpcResultBuilder.newError(ErrorType.APPLICATION,"Prosses denied", "the Vending Machine in Out of item", "out-of-stock", null, null);
-    }
+    @Override
+    public Future<RpcResult<java.lang.Void>> refullItem(final RefullItemInput input){
     
-    private RpcError MakeOrderInUseError(){
-    	return RpcResultBuilder.newError(ErrorType.APPLICATION, "In-Progress", "Vending Machine is busy", null, null, null);
-    	
+    	LOG.debug("processOrder: {}", input);
+
+    	if (membership != null){
+    		final String owner = remoteOwnerOf(machineIdOf(input));
+    		if (owner != null){
+    			return orderForwarder.forwardRefill(owner, input);
+    		}
+    	}
+    	return refullOwnedItem(input);
     }
-    
-    private void setVendingMachineStatusAvaliable (final Function<Boolean, Void> resultCallback){
-    	
-    	WriteTransaction tx = dataProvider.newWriteOnlyTransaction();
-    	tx.put(LogicalDatastoreType.OPERATIONAL,  VENDINGMACHINE_IID, buildVendingmachine (VendingmachineStatus.Availability));
-    	
-    	Futures.addCallback(tx.submit(), new FutureCallback<Void>(){
+
+    /**
+     * Refills a machine on this node without forwarding the refill, the way
+     * refills forwarded by another node are served. Turned down if this node
+     * does not own the machine.
+     */
+    public ListenableFuture<RpcResult<Void>> refullOwnedItem(final RefullItemInput input){
+
+    	final String machineId = machineIdOf(input);
+    	if (membership != null && !machines.containsKey(machineId)
+    			&& !nodeId.equals(ClusterMembership.ownerOf(machineId, membership.getLiveMembers()))){
+    		// the nodes do not agree on the live members yet
+    		stats.reject(RejectionReason.NOT_OWNER);
+    		return Futures.immediateFuture(RpcResultBuilder.<Void>failed().withRpcError(OwnershipMovingError(machineId)).build());
+    	}
+
+    	// refilling an unknown machine adds it to the fleet
+    	final MachineContext machine = getOrCreateMachine(machineId, MachineContext.Ownership.OWNED);
+    	if (machine.getOwnership() != MachineContext.Ownership.OWNED){
+    		stats.reject(RejectionReason.NOT_OWNER);
+    		return Futures.immediateFuture(RpcResultBuilder.<Void>failed().withRpcError(NotServedError(machine)).build());
+    	}
+    	if (membership != null){
+    		machine.setOwner(nodeId);
+    	}
+    	final long quantity = input.getQuantityofproductprovide();
+    	final List<ListenableFuture<Void>> journaled = new ArrayList<>(ProductInventory.PRODUCTS.size());
+    	long totalAdded = 0;
+    	for (Class<? extends VendingProducts> product : ProductInventory.PRODUCTS){
+    		final long added = machine.getInventory().refill(product, capacityOf(product, quantity));
+    		totalAdded += added;
+    		if (journal != null){
+    			journaled.add(journal.refilled(machine.getMachineId(), product, added));
+    		}
+    		if (audit != null){
+    			audit.record(AuditTrail.EventType.REFILLED, machine.getMachineId(), product, added);
+    		}
+    	}
+    	stateWriter.stockChanged(machine);
+    	// the slots are set to the quantity, the notification tells what that added
+    	notifications.refilled(machine, totalAdded);
     	
+    	// a record may be turned down while the next ones are journaled, each one is waited for
+    	final SettableFuture<RpcResult<Void>> futureResult = SettableFuture.create();
+    	Futures.addCallback(Futures.allAsList(journaled), new FutureCallback<List<Void>>(){
+    		
     		@Override
-    		public void onSuccess (final Void result){
-    			notifyCallback(true);
+    		public void onSuccess (final List<Void> result){
+    			futureResult.set(RpcResultBuilder.<Void> success().build());
     		}
     		
     		@Override
     		public void onFailure (final Throwable t){
-    			LOG.error("Failed to update Vendingmachine Stutus", t);
-    			notifyCallback (false);
-    		}
-    		void notifyCallback (final boolean result){
-    			if (resultCallback != null){
-    				resultCallback.apply(result);
-    			}
+    			LOG.error("Failed to journal the refill of {}", machine.getMachineId(), t);
+    			futureResult.set(RpcResultBuilder.<Void>failed().withRpcError(JournalError(t)).build());
     		}
     	});
-    	
-    }
-        private boolean outOfStock(){
-    	return amountOfProductInStock.get() == 0;
+    	return futureResult;
     }
-    private void checkStatusAndMakeOrderItem (final MakeOrderInput input, final SettableFuture<RpcResult<Void>> futureResult, final int tries){
-    	LOG.info("checkStatusAndMakeOrderItem");
-    	
-    	final ReadWriteTransaction tx = dataProvider.newReadWriteTransaction();
-    	ListenableFuture<Optional<Vendingmachine>> readFuture = tx.read(LogicalDatastoreType.OPERATIONAL, VENDINGMACHINE_IID);
-    	
+    
+    /**
+     * Runs on the bulk thread, one import or export at a time.
+     */
+    @Override
+    public Future<RpcResult<ImportInventoryOutput>> importInventory(final ImportInventoryInput input){
+    	LOG.debug("importInventory: {}", input);
+    	if (input.getFilePath() == null){
+    		return Futures.immediateFuture(RpcResultBuilder.<ImportInventoryOutput>failed()
+    				.withError(ErrorType.PROTOCOL, "missing-element", "No file-path given").build());
+    	}
+    	final File file = new File(input.getFilePath());
+    	final InventoryFormat format = input.getFormat() != null ? input.getFormat() : InventoryFormat.Csv;
     	
-    	final ListenableFuture<Void> commitFuture = Futures.transform(readFuture,  new AsyncFunction<Optional<Vendingmachine>,Void>(){
+    	return bulkExecutor.submit(new Callable<RpcResult<ImportInventoryOutput>>(){
     		
     		@Override
-    		public ListenableFuture<Void> apply(
-    				final Optional<Vendingmachine> vendingmachineData) throws Exception{
-    			
-    			VendingmachineStatus vendingmachineStatus = VendingmachineStatus.Availability;
-    			if (vendingmachineData.isPresent()){
-    				vendingmachineStatus = vendingmachineData.get().getVendingmachineStatus();
+    		public RpcResult<ImportInventoryOutput> call(){
+    			try {
+    				// a first pass only checks the file, so a malformed file sets no stock at all
+    				InventoryFile.read(file, format, InventoryFile.IGNORE);
+    				final InventoryImport inventoryImport = new InventoryImport();
+    				InventoryFile.read(file, format, inventoryImport);
+    				return RpcResultBuilder.success(inventoryImport.finish()).build();
     			}
-    			
-    			LOG.debug("Read Vending Machine status: {}", vendingmachineStatus);
-    			if (vendingmachineStatus == VendingmachineStatus.Availability){
-    				if (outOfStock()){
-    					LOG.debug("Vending Machine is out or Products");
-    					return Futures.immediateFailedCheckedFuture(new TransactionCommitFailedException("", MakeOrderOutOfStockError()));
-    				}
-    				
-    				LOG.debug("Setting Vendingmachine status to empty");
-    				
-    				tx.put(LogicalDatastoreType.OPERATIONAL, VENDINGMACHINE_IID, buildVendingmachine (VendingmachineStatus.Empty));
-    				return tx.submit();
+    			catch (IOException e){
+    				LOG.warn("Failed to import the inventory of {}", file, e);
+    				return RpcResultBuilder.<ImportInventoryOutput>failed().withRpcError(InventoryFileError(e)).build();
     			}
-    			
-    			LOG.debug("Your Order In Progress");
-    			
-    			return Futures.immediateFailedCheckedFuture(new TransactionCommitFailedException("", MakeOrderInUseError()));
     		}
-    		
     	});
+    }
+    
+    @Override
+    public Future<RpcResult<ExportInventoryOutput>> exportInventory(final ExportInventoryInput input){
+    	LOG.debug("exportInventory: {}", input);
+    	if (input.getFilePath() == null){
+    		return Futures.immediateFuture(RpcResultBuilder.<ExportInventoryOutput>failed()
+    				.withError(ErrorType.PROTOCOL, "missing-element", "No file-path given").build());
+    	}
+    	final File file = new File(input.getFilePath());
+    	final InventoryFormat format = input.getFormat() != null ? input.getFormat() : InventoryFormat.Csv;
     	
-    	Futures.addCallback( commitFuture, new FutureCallback<Void>(){
+    	return bulkExecutor.submit(new Callable<RpcResult<ExportInventoryOutput>>(){
     		
     		@Override
-    		public void onSuccess (final Void result){
-    			currentMakeOrderTask.set(executor.submit(new makeOrderTask(input, futureResult)));
+    		public RpcResult<ExportInventoryOutput> call(){
+    			long written = 0;
+    			try (InventoryFile.Writer writer = InventoryFile.write(file, format)){
+    				for (MachineContext machine : machines.values()){
+    					// the stock of a machine owned elsewhere is that node's to export
+    					if (machine.isWritable()){
+    						writer.machine(machine.getMachineId(), machine.getInventory());
+    						written++;
+    					}
+    				}
+    				writer.commit();
+    			}
+    			catch (IOException e){
+    				LOG.warn("Failed to export the inventory to {}", file, e);
+    				return RpcResultBuilder.<ExportInventoryOutput>failed().withRpcError(InventoryFileError(e)).build();
+    			}
+    			return RpcResultBuilder.success(new ExportInventoryOutputBuilder()
+    					.setMachines(written)
+    					.setSlots(written * ProductInventory.PRODUCTS.size())
+    					.build()).build();
     		}
-    		
-    		@Override
-    		public void onFailure (final Throwable ex){
-    			if (ex instanceof OptimisticLockFailedException){
-    				
+    	});
+    }
+    
+    /**
+     * Sets the stock of the slots of an inventory file as they are read. The
+     * rows of a machine are expected next to each other: the stock of a
+     * machine is committed once the file moves on to the next machine, in
+     * batches of {@link #setImportBatchSize(long)} machines.
+     */
+    private class InventoryImport implements InventoryFile.SlotHandler{
+    	
+    	private String machineId;
+    	private MachineContext machine;
+    	private long machinesSet;
+    	private long slotsSet;
+    	private long slotsSkipped;
+    	private long uncommitted;
+    	// journal records of the slots set since the last commit
+    	private final List<ListenableFuture<Void>> journaled = new ArrayList<>();
+    	
+    	@Override
+    	public void slot(final String slotMachineId, final Class<? extends VendingProducts> product, final long stock) throws IOException{
+    		if (!slotMachineId.equals(machineId)){
+    			machineDone();
+    			machineId = slotMachineId;
+    			if (isOwnedHere(slotMachineId)){
+    				machine = getOrCreateMachine(slotMachineId, MachineContext.Ownership.OWNED);
+    				if (membership != null){
+    					machine.setOwner(nodeId);
+    				}
+    				machinesSet++;
+    			}
+    		}
+    		if (machine == null){
+    			slotsSkipped++;
+    			return;
+    		}
+    		
+    		final long added = machine.getInventory().refill(product, capacityOf(product, stock));
+    		if (journal != null){
+    			journaled.add(journal.refilled(slotMachineId, product, added));
+    		}
+    		if (audit != null){
+    			audit.record(AuditTrail.EventType.REFILLED, slotMachineId, product, added);
+    		}
+    		slotsSet++;
+    	}
+    	
+    	ImportInventoryOutput finish() throws IOException{
+    		machineDone();
+    		commit();
+    		return new ImportInventoryOutputBuilder()
+    				.setMachines(machinesSet)
+    				.setSlots(slotsSet)
+    				.setSkippedSlots(slotsSkipped)
+    				.build();
+    	}
+    	
+    	private void machineDone() throws IOException{
+    		if (machine == null){
+    			return;
+    		}
+    		stateWriter.stockChanged(machine);
+    		notifications.stockChanged(machine);
+    		machine = null;
+    		if (++uncommitted >= importBatchSize){
+    			commit();
+    		}
+    	}
+    	
+    	/**
+    	 * Waits for the stock set so far to be written in one transaction, and
+    	 * journaled, before reading on.
+    	 */
+    	private void commit() throws IOException{
+    		uncommitted = 0;
+    		try {
+    			stateWriter.flush().get();
+    			// a record may be turned down while the next ones are journaled, each one is waited for
+    			Futures.allAsList(journaled).get();
+    		}
+    		catch (InterruptedException e){
+    			Thread.currentThread().interrupt();
+    			throw new InterruptedIOException("Import interrupted");
+    		}
+    		catch (ExecutionException e){
+    			throw new IOException("Failed to commit the stock of the import", e.getCause());
+    		}
+    		finally {
+    			journaled.clear();
+    		}
+    	}
+    }
+    
+    /**
+     * Answers from the rolling windows of the sales analytics, in the same time
+     * however many orders were made.
+     */
+    @Override
+    public Future<RpcResult<GetSalesStatisticsOutput>> getSalesStatistics(){
+    	final long now = System.nanoTime();
+    	final List<ProductSales> productSales = new ArrayList<>(ProductInventory.PRODUCTS.size());
+    	for (Class<? extends VendingProducts> product : ProductInventory.PRODUCTS){
+    		final SalesAnalytics.Sales minute = salesAnalytics.getSales(product, SalesAnalytics.Window.LAST_MINUTE, now);
+    		final SalesAnalytics.Sales hour = salesAnalytics.getSales(product, SalesAnalytics.Window.LAST_HOUR, now);
+    		final SalesAnalytics.Sales day = salesAnalytics.getSales(product, SalesAnalytics.Window.LAST_DAY, now);
+    		productSales.add(new ProductSalesBuilder()
+    				.setProduct(product)
+    				.setLastMinute(new LastMinuteBuilder().setOrders(BigInteger.valueOf(minute.getOrders()))
+    						.setItems(BigInteger.valueOf(minute.getItems())).setItemsPerMinute(perMinute(minute)).build())
+    				.setLastHour(new LastHourBuilder().setOrders(BigInteger.valueOf(hour.getOrders()))
+    						.setItems(BigInteger.valueOf(hour.getItems())).setItemsPerMinute(perMinute(hour)).build())
+    				.setLastDay(new LastDayBuilder().setOrders(BigInteger.valueOf(day.getOrders()))
+    						.setItems(BigInteger.valueOf(day.getItems())).setItemsPerMinute(perMinute(day)).build())
+    				.build());
+    	}
+    	return Futures.immediateFuture(RpcResultBuilder.success(
+    			new GetSalesStatisticsOutputBuilder().setProductSales(productSales).build()).build());
+    }
+    
+    private static BigDecimal perMinute(final SalesAnalytics.Sales sales){
+    	return BigDecimal.valueOf(sales.getItemsPerMinute()).setScale(2, RoundingMode.HALF_UP);
+    }
+    
+    public void onDataChanged( final AsyncDataChangeEvent<InstanceIdentifier<?>, DataObject> change ) {
+        DataObject dataObject = change.getUpdatedSubtree();
+        if( dataObject instanceof Vendingmachine ) {
+        	Vendingmachine vendingmachine = (Vendingmachine) dataObject;
+        	
+            LOG.debug("onDataChanged - new Vendingmachine config: {}", vendingmachine);
+            applyConfiguration(vendingmachine);
+        } 
+    }
+    
+    /**
+     * Applies the settings of the vendingmachine configuration that differ from
+     * the running ones. Every setting is replaced atomically, orders in flight
+     * finish under the settings they were admitted with.
+     */
+    private void applyConfiguration(final Vendingmachine config){
+    	final Long maxItems = config.getMaxOrderItems();
+    	if (maxItems != null && maxOrderItems.getAndSet(maxItems) != maxItems){
+    		LOG.info("Orders now take at most {} items", maxItems);
+    	}
+    	
+    	final Long maxInFlight = config.getMaxOrdersInFlight();
+    	if (maxInFlight != null && maxInFlight != maxOrdersInFlight){
+    		setMaxOrdersInFlight(maxInFlight);
+    		LOG.info("Machines now take at most {} orders in flight", maxInFlight);
+    	}
+    	
+    	final Map<Class<? extends VendingProducts>, Long> capacities = new HashMap<>();
+    	if (config.getProductCapacity() != null){
+    		for (ProductCapacity capacity : config.getProductCapacity()){
+    			capacities.put(capacity.getProduct(), capacity.getCapacity());
+    		}
+    	}
+    	if (!capacities.equals(productCapacities)){
+    		productCapacities = Collections.unmodifiableMap(capacities);
+    		LOG.info("Product capacities are now {}", capacities);
+    	}
+    }
+    
+    private long capacityOf(final Class<? extends VendingProducts> product, final long quantity){
+    	final Long capacity = productCapacities.get(product);
+    	return capacity != null ? Math.min(quantity, capacity) : quantity;
+    }
+    
+    private void initVendingmachineOperational (){
+    	Vendingmachine vendingmachine = VENDINGMACHINE_BY_STATUS.get(VendingmachineStatus.Availability);
+    			
+    	
+    	WriteTransaction tx = dataProvider.newWriteOnlyTransaction();
+    	tx.put(LogicalDatastoreType.OPERATIONAL, VENDINGMACHINE_IID, vendingmachine);
+    	statusCache.writing(VendingmachineStatus.Availability);
+    	
+    	Futures.addCallback(tx.submit(), new FutureCallback<Void>(){
+    		@Override
+    		public void onSuccess (final Void result){
+    			statusCache.committed(VendingmachineStatus.Availability);
+    			stateWriter.stockChanged(defaultMachine);
+    			LOG.debug("initVendingmachineOperational: Transaction succeeded");
+    		}
+    		@Override
+    		public void onFailure (final Throwable t){
+    			LOG.warn("initVendingmachineOperational: Transaction failed", t);
+    		}
+    		
+    	});
+    	LOG.debug("initVendingmachineOperational: operational status populated: {}", vendingmachine);
+    }
+    
+    /**
+     * Publishes the running settings as the vendingmachine configuration,
+     * unless a configuration is already there: that one is applied through
+     * {@link #onDataChanged} instead.
+     */
+    private void initVendingmachineConfiguration(){
+    	final ReadOnlyTransaction readTx = dataProvider.newReadOnlyTransaction();
+    	final ListenableFuture<Optional<Vendingmachine>> readFuture = readTx.read(LogicalDatastoreType.CONFIGURATION, VENDINGMACHINE_IID);
+    	// closing the transaction with the read pending may fail the read
+    	readFuture.addListener(new Runnable(){
+    		
+    		@Override
+    		public void run(){
+    			readTx.close();
+    		}
+    	}, MoreExecutors.directExecutor());
+    	
+    	final ListenableFuture<Void> commitFuture = Futures.transform(readFuture, new AsyncFunction<Optional<Vendingmachine>, Void>(){
+    		
+    		@Override
+    		public ListenableFuture<Void> apply(final Optional<Vendingmachine> existing){
+    			if (existing.isPresent()){
+    				LOG.debug("initVendingmachineConfiguration: keeping the existing configuration");
+    				return Futures.immediateFuture(null);
+    			}
+    			
+    			Vendingmachine vendingmachine = new VendingmachineBuilder()
+    					.setMaxOrderItems(maxOrderItems.get())
+    					.setMaxOrdersInFlight((long) maxOrdersInFlight)
+    					.build();
+    			WriteTransaction tx = dataProvider.newWriteOnlyTransaction();
+    			tx.put(LogicalDatastoreType.CONFIGURATION, VENDINGMACHINE_IID, vendingmachine);
+    			return tx.submit();
+    		}
+    	});
+    	
+    	Futures.addCallback(commitFuture, new FutureCallback<Void>(){
+    		
+    		@Override
+    		public void onSuccess (final Void result){
+    			LOG.debug("initVendingmachineConfiguration: Transaction succeeded");
+    		}
+    		@Override
+    		public void onFailure (final Throwable t){
+    			LOG.warn("initVendingmachineConfiguration: Transaction failed", t);
+    		}
+    		
+    	});
+    }
+    
+    private static Map<VendingmachineStatus, Vendingmachine> buildVendingmachines (){
+    	final Map<VendingmachineStatus, Vendingmachine> vendingmachines = new EnumMap<>(VendingmachineStatus.class);
+    	for (VendingmachineStatus status : VendingmachineStatus.values()){
+    		vendingmachines.put(status, new VendingmachineBuilder()
+    				.setVendingmachineManufacturer( vendingmachine_MANUFACTURE )
+    				.setVendingmachineModelNumber( vendingmachine_MODEL_NUMBER )
+    				.setVendingmachineStatus( status )
+    				.build());
+    	}
+    	return Collections.unmodifiableMap(vendingmachines);
+    }
+    
+    private RpcError UnknownMachineError(final String machineId){
+    	return RpcResultBuilder.newError(ErrorType.APPLICATION, "data-missing", "Unknown vending machine " + machineId, null, null, null);
+    }
+    
+    /**
+     * @return the error of a request for a machine this node knows but does not serve
+     */
+    private RpcError NotServedError(final MachineContext machine){
+    	if (machine.getOwnership() == MachineContext.Ownership.ACQUIRING || machine.getOwner() == null){
+    		return OwnershipMovingError(machine.getMachineId());
+    	}
+    	return RejectingOrderForwarder.notOwnerError(machine.getOwner());
+    }
+    
+    private RpcError OwnershipMovingError(final String machineId){
+    	return RpcResultBuilder.newError(ErrorType.APPLICATION, "resource-denied", "Vending machine " + machineId + " is moving to this node",
+    			"ownership-moving", "retry-after-ms=" + heartbeatInterval, null);
+    }
+    
+    private RpcError InventoryFileError(final IOException cause){
+    	if (cause instanceof InventoryFile.FormatException){
+    		return RpcResultBuilder.newError(ErrorType.APPLICATION, "invalid-value", "Malformed inventory file: " + cause.getMessage(), null, null, null);
+    	}
+    	return RpcResultBuilder.newError(ErrorType.APPLICATION, "operation-failed", "Could not access the inventory file: " + cause.getMessage(), null, null, cause);
+    }
+    
+    private static RpcResult<Void> ProviderClosed(){
+    	return RpcResultBuilder.<Void>failed().withError(ErrorType.APPLICATION, "operation-failed", "Vending machine provider closed").build();
+    }
+    
+    private RpcError JournalError(final Throwable cause){
+    	return RpcResultBuilder.newError(ErrorType.APPLICATION, "operation-failed", "Could not journal the change: " + cause.getMessage(), null, null, cause);
+    }
+    
+    private RpcError MakeOrderOverloadError(final MachineContext machine, final String message, final String appTag){
+    	final OrderQueue queue = machine.getOrderQueue();
+    	final int parallelism = isSerialized(machine) ? 1 : machine.getOrdersInFlight().getLimit();
+    	return RpcResultBuilder.newError(ErrorType.APPLICATION, "resource-denied", message, appTag,
+    			"queue-depth=" + queue.size() + ";retry-after-ms=" + queue.getRetryAfterMillis(parallelism), null);
+    }
+    
+    private RpcError MakeOrderTooLargeError(final long maxItems){
+    	return RpcResultBuilder.newError(ErrorType.PROTOCOL, "invalid-value", "At most " + maxItems + " items can be ordered at once", null, null, null);
+    }
+    
+    /**
+     * Writes the available status back. The order task is told the outcome and
+     * keeps the status cache in step with it.
+     */
+    private void setVendingMachineStatusAvaliable (final makeOrderTask task){
+    	
+    	WriteTransaction tx = dataProvider.newWriteOnlyTransaction();
+    	tx.merge(LogicalDatastoreType.OPERATIONAL,  VENDINGMACHINE_IID, VENDINGMACHINE_BY_STATUS.get(VendingmachineStatus.Availability));
+    	statusCache.writing(VendingmachineStatus.Availability);
+    	
+    	task.startPhase(OrderPhase.STATUS_RESET);
+    	Futures.addCallback(tx.submit(), task);
+    	
+    }
+    /**
+     * Opens the order journal and restores the stock and order counts it
+     * recorded. Orders are not journaled if it cannot be opened.
+     */
+    private void openJournal(){
+    	try {
+    		journal = new OrderJournal(new File(journalDirectory), (int) Math.min(journalSize << 20, Integer.MAX_VALUE), INITIAL_SLOT_STOCK);
+    	}
+    	catch (IOException e){
+    		LOG.error("Failed to open the order journal in {}, orders are not journaled", journalDirectory, e);
+    		return;
+    	}
+    	
+    	for (Map.Entry<String, OrderJournal.MachineState> recovered : journal.getState().entrySet()){
+    		final MachineContext machine = getOrCreateMachine(recovered.getKey(), initialOwnership());
+    		for (Class<? extends VendingProducts> product : ProductInventory.PRODUCTS){
+    			machine.getInventory().refill(product, recovered.getValue().getInStock(product));
+    		}
+    		machine.getOrdersMade().set(recovered.getValue().getOrdersMade());
+    	}
+    }
+    
+    /**
+     * Opens the audit trail. Orders and refills are not audited if it cannot be
+     * opened.
+     */
+    private void openAudit(){
+    	try {
+    		audit = new AuditTrail(new File(auditDirectory), (int) Math.min(auditBufferSize, Integer.MAX_VALUE),
+    				auditFileSize << 20, (int) Math.min(auditFiles, Integer.MAX_VALUE), auditBlockWhenFull);
+    	}
+    	catch (IOException e){
+    		LOG.error("Failed to open the audit trail in {}, orders are not audited", auditDirectory, e);
+    	}
+    }
+    
+    private ListenableFuture<Void> journalOrder(final MachineContext machine, final Class<? extends VendingProducts> product, final long itemCount){
+    	return journal != null ? journal.orderMade(machine.getMachineId(), product, itemCount) : Futures.<Void>immediateFuture(null);
+    }
+    
+    /**
+     * Journals that an order journaled with {@link #journalOrder} was not made,
+     * once its record is in the journal.
+     */
+    private void cancelJournaled(final MachineContext machine, final Class<? extends VendingProducts> product, final long itemCount,
+    		final ListenableFuture<Void> journaled){
+    	if (journal == null){
+    		return;
+    	}
+    	// a record that made it to the journal has to be compensated
+    	Futures.addCallback(journaled, new FutureCallback<Void>(){
+    		
+    		@Override
+    		public void onSuccess(final Void result){
+    			journal.orderCancelled(machine.getMachineId(), product, itemCount);
+    		}
+    		
+    		@Override
+    		public void onFailure(final Throwable journalFailure){
+    			LOG.debug("Order of {} {} on {} was not journaled", itemCount, product.getSimpleName(), machine.getMachineId(), journalFailure);
+    		}
+    	});
+    }
+    
+    /**
+     * @param ownership ownership of the machine if it is created, ignored if it
+     *        is already known
+     */
+    private MachineContext getOrCreateMachine(final String machineId, final MachineContext.Ownership ownership){
+    	MachineContext machine = machines.get(machineId);
+    	if (machine == null){
+    		final MachineContext created = new MachineContext(machineId, shards.shardOf(machineId), INITIAL_SLOT_STOCK, maxOrdersInFlight);
+    		created.getOrderQueue().setCapacity(orderQueueCapacity);
+    		created.setOwnership(ownership);
+    		machine = machines.putIfAbsent(machineId, created);
+    		if (machine == null){
+    			LOG.debug("Vending machine {} joined the fleet on shard {}", machineId, created.getShard());
+    			machine = created;
+    			stateWriter.stockChanged(machine);
+    		}
+    	}
+    	return machine;
+    }
+    
+    private boolean isClustered(){
+    	return !nodeId.isEmpty();
+    }
+    
+    /**
+     * A clustered node does not know yet whether the machines it starts with
+     * are its own, they are settled by the first rebalance.
+     */
+    private MachineContext.Ownership initialOwnership(){
+    	return isClustered() ? MachineContext.Ownership.ACQUIRING : MachineContext.Ownership.OWNED;
+    }
+    
+    /**
+     * @return the node serving the machine if it is another node, null if it is
+     *         this node or not known yet
+     */
+    private String remoteOwnerOf(final String machineId){
+    	final MachineContext machine = machines.get(machineId);
+    	if (machine != null){
+    		final MachineContext.Ownership ownership = machine.getOwnership();
+    		return ownership == MachineContext.Ownership.RELEASING || ownership == MachineContext.Ownership.NOT_OWNED ? machine.getOwner() : null;
+    	}
+    	final String owner = ClusterMembership.ownerOf(machineId, membership.getLiveMembers());
+    	return owner == null || nodeId.equals(owner) ? null : owner;
+    }
+    
+    /**
+     * @return whether this node serves the machine, or would add it to the
+     *         fleet if it is not known yet
+     */
+    private boolean isOwnedHere(final String machineId){
+    	final MachineContext machine = machines.get(machineId);
+    	if (machine != null){
+    		return machine.getOwnership() == MachineContext.Ownership.OWNED;
+    	}
+    	return membership == null || nodeId.equals(ClusterMembership.ownerOf(machineId, membership.getLiveMembers()));
+    }
+    
+    /**
+     * Gives every machine of the fleet, known here or written by another node,
+     * to the live member owning it now. Runs on the membership thread, which
+     * the hand-overs and take-overs it starts also run on.
+     */
+    private void rebalance(final List<String> liveMembers){
+    	final Set<String> machineIds = new HashSet<>(machines.keySet());
+    	final Map<String, Machine> fleet = readFleet();
+    	machineIds.addAll(fleet.keySet());
+    	
+    	int owned = 0;
+    	for (String machineId : machineIds){
+    		final String owner = ClusterMembership.ownerOf(machineId, liveMembers);
+    		if (nodeId.equals(owner)){
+    			owned++;
+    			final MachineContext machine = getOrCreateMachine(machineId, MachineContext.Ownership.ACQUIRING);
+    			machine.setOwner(nodeId);
+    			switch (machine.getOwnership()){
+    			case RELEASING:
+    				// handed back before the hand-over completed, nothing left this node
+    				machine.setOwnership(MachineContext.Ownership.OWNED);
+    				break;
+    			case NOT_OWNED:
+    				machine.setOwnership(MachineContext.Ownership.ACQUIRING);
+    				scheduleTakeOver(machine);
+    				break;
+    			case ACQUIRING:
+    				scheduleTakeOver(machine);
+    				break;
+    			default:
+    				break;
+    			}
+    		}
+    		else {
+    			final MachineContext machine = machines.get(machineId);
+    			if (machine == null){
+    				continue;
+    			}
+    			machine.setOwner(owner);
+    			switch (machine.getOwnership()){
+    			case OWNED:
+    				release(machine);
+    				break;
+    			case ACQUIRING:
+    				machine.setOwnership(MachineContext.Ownership.NOT_OWNED);
+    				break;
+    			default:
+    				break;
+    			}
+    		}
+    	}
+    	LOG.info("Node {} owns {} of {} vending machines", nodeId, owned, machineIds.size());
+    }
+    
+    private Map<String, Machine> readFleet(){
+    	final Map<String, Machine> fleet = new HashMap<>();
+    	final ReadOnlyTransaction readTx = dataProvider.newReadOnlyTransaction();
+    	try {
+    		final Optional<Fleet> entries = readTx.read(LogicalDatastoreType.OPERATIONAL, FLEET_IID).checkedGet();
+    		if (entries.isPresent() && entries.get().getMachine() != null){
+    			for (Machine entry : entries.get().getMachine()){
+    				fleet.put(entry.getMachineId().getValue(), entry);
+    			}
+    		}
+    	}
+    	catch (ReadFailedException e){
+    		LOG.warn("Failed to read the fleet, only rebalancing the machines known here", e);
+    	}
+    	finally {
+    		readTx.close();
+    	}
+    	return fleet;
+    }
+    
+    private void scheduleTakeOver(final MachineContext machine){
+    	membership.schedule(new Runnable(){
+    		
+    		@Override
+    		public void run(){
+    			takeOver(machine);
+    		}
+    	}, heartbeatInterval);
+    }
+    
+    /**
+     * Starts serving a machine acquired by this node, with the stock its
+     * previous owner wrote last: the stock it handed the machine over with, or
+     * its last periodic write if it failed. The journal of a failed owner is
+     * its own, so the orders and refills it served after that write are lost.
+     */
+    private void takeOver(final MachineContext machine){
+    	if (machine.getOwnership() != MachineContext.Ownership.ACQUIRING || !nodeId.equals(machine.getOwner())){
+    		return;
+    	}
+    	
+    	final Optional<Machine> entry;
+    	final ReadOnlyTransaction readTx = dataProvider.newReadOnlyTransaction();
+    	try {
+    		entry = readTx.read(LogicalDatastoreType.OPERATIONAL, machine.getIid()).checkedGet();
+    	}
+    	catch (ReadFailedException e){
+    		LOG.warn("Failed to read the stock of {}, retrying", machine.getMachineId(), e);
+    		scheduleTakeOver(machine);
+    		return;
+    	}
+    	finally {
+    		readTx.close();
+    	}
+    	
+    	final String previousOwner = entry.isPresent() ? entry.get().getOwner() : null;
+    	if (previousOwner != null && !previousOwner.equals(nodeId) && membership.getLiveMembers().contains(previousOwner)){
+    		// still serving its last orders, it writes this node as the owner once done
+    		scheduleTakeOver(machine);
+    		return;
+    	}
+    	
+    	// without an owner no member wrote the machine yet, and the stock here is the only one
+    	if (previousOwner != null && entry.get().getProductSlot() != null){
+    		for (ProductSlot slot : entry.get().getProductSlot()){
+    			final long added = machine.getInventory().refill(slot.getProduct(), slot.getNumberInStock());
+    			if (journal != null){
+    				journal.refilled(machine.getMachineId(), slot.getProduct(), added);
+    			}
+    		}
+    	}
+    	
+    	machine.setOwnership(MachineContext.Ownership.OWNED);
+    	stateWriter.stockChanged(machine);
+    	LOG.info("Vending machine {} taken over from {}", machine.getMachineId(), previousOwner);
+    }
+    
+    /**
+     * Stops serving a machine now owned by another node. Queued orders are
+     * turned down, the orders in flight finish here, then the stock is written
+     * with the new owner, which takes the machine over from there.
+     */
+    private void release(final MachineContext machine){
+    	machine.setOwnership(MachineContext.Ownership.RELEASING);
+    	for (OrderQueue.Entry queued : machine.getOrderQueue().drain()){
+    		stats.reject(RejectionReason.NOT_OWNER);
+    		queued.getFutureResult().set(RpcResultBuilder.<Void>failed().withRpcError(NotServedError(machine)).build());
+    	}
+    	scheduleHandOver(machine);
+    }
+    
+    private void scheduleHandOver(final MachineContext machine){
+    	membership.schedule(new Runnable(){
+    		
+    		@Override
+    		public void run(){
+    			handOver(machine);
+    		}
+    	}, heartbeatInterval);
+    }
+    
+    private void handOver(final MachineContext machine){
+    	if (machine.getOwnership() != MachineContext.Ownership.RELEASING){
+    		return;
+    	}
+    	if (machine.getOrdersInFlight().getInFlight() > 0 || (isSerialized(machine) && currentMakeOrderTask.get() != null)){
+    		scheduleHandOver(machine);
+    		return;
+    	}
+    	
+    	final String newOwner = machine.getOwner();
+    	machine.setOwnership(MachineContext.Ownership.NOT_OWNED);
+    	Futures.addCallback(stateWriter.handOver(machine, newOwner), new FutureCallback<Void>(){
+    		
+    		@Override
+    		public void onSuccess(final Void result){
+    			LOG.info("Vending machine {} handed over to {}", machine.getMachineId(), newOwner);
+    		}
+    		
+    		@Override
+    		public void onFailure(final Throwable t){
+    			// the new owner takes over with the last periodic write once this node is gone
+    			LOG.warn("Failed to hand vending machine {} over to {}", machine.getMachineId(), newOwner, t);
+    		}
+    	});
+    }
+    
+    /**
+     * The datastore status handshake is tied to the vendingmachine container, so
+     * only the default machine can be serialized through it.
+     */
+    private boolean isSerialized(final MachineContext machine){
+    	return !concurrentOrders && machine.isDefault();
+    }
+    
+    private static String machineIdOf(final MachineRef input){
+    	return input.getMachineId() != null ? input.getMachineId().getValue() : MachineContext.DEFAULT_MACHINE_ID;
+    }
+    
+    private static Class<? extends VendingProducts> productOf(final OrderItem input){
+    	return input.getItemtype() != null ? input.getItemtype() : Water.class;
+    }
+    
+    private static long itemCountOf(final OrderItem input){
+    	return input.getNumberofitems() != null ? input.getNumberofitems() : 1;
+    }
+    
+    private boolean checkOrderSize(final long itemCount, final SettableFuture<RpcResult<Void>> futureResult){
+    	final long maxItems = maxOrderItems.get();
+    	if (itemCount > maxItems){
+    		stats.reject(RejectionReason.ORDER_TOO_LARGE);
+    		futureResult.set(RpcResultBuilder.<Void>failed().withRpcError(MakeOrderTooLargeError(maxItems)).build());
+    		return false;
+    	}
+    	return true;
+    }
+    
+    /**
+     * Concurrent counterpart of {@link #checkStatusAndMakeOrderItem}: the order
+     * is admitted against the in-flight limit and its items are reserved in
+     * memory, without a datastore round-trip.
+     */
+    private void admitOrder(final MachineContext machine, final MakeOrderInput input, final SettableFuture<RpcResult<Void>> futureResult, final OrderDeadline deadline){
+    	final Class<? extends VendingProducts> product = productOf(input);
+    	final long itemCount = itemCountOf(input);
+    	if (!checkOrderSize(itemCount, futureResult)){
+    		return;
+    	}
+    	
+    	if (!machine.getOrdersInFlight().tryAcquire()){
+    		if (!enqueueOrder(machine, input, futureResult, NOT_QUEUED, deadline)){
+    			LOG.debug("Too many orders in flight");
+    			stats.reject(RejectionReason.TOO_MANY_IN_FLIGHT);
+    			futureResult.set(TOO_MANY_IN_FLIGHT);
+    		}
+    		return;
+    	}
+    	
+    	reserveAndDispense(machine, input, futureResult, deadline);
+    }
+    
+    /**
+     * Reserves the items of an order holding one of its machine's in-flight
+     * permits and hands them to the dispense scheduler.
+     */
+    private void reserveAndDispense(final MachineContext machine, final MakeOrderInput input, final SettableFuture<RpcResult<Void>> futureResult, final OrderDeadline deadline){
+    	if (!machine.getInventory().reserve(productOf(input), itemCountOf(input))){
+    		machine.getOrdersInFlight().release();
+    		LOG.debug("Vending Machine is out or Products");
+    		stats.reject(RejectionReason.OUT_OF_STOCK);
+    		futureResult.set(OUT_OF_STOCK);
+    		return;
+    	}
+    	
+    	dispense(new makeOrderTask(machine, input, futureResult, 0, NOT_QUEUED, deadline));
+    }
+    
+    /**
+     * Puts an order that found its machine busy in the machine's queue, or
+     * turns it down with an overload error if the queue is full.
+     *
+     * @param queueDeadline deadline the order already had in the queue, or
+     *        {@link #NOT_QUEUED}
+     * @param deadline the order's own deadline, null if it has none
+     * @return false if queueing is disabled, the caller then rejects the order
+     */
+    private boolean enqueueOrder(final MachineContext machine, final MakeOrderInput input, final SettableFuture<RpcResult<Void>> futureResult, final long queueDeadline, final OrderDeadline deadline){
+    	final OrderQueue queue = machine.getOrderQueue();
+    	if (queue.getCapacity() == 0){
+    		return false;
+    	}
+    	
+    	final long leaveBy = queueDeadline != NOT_QUEUED ? queueDeadline : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(orderQueueTimeout);
+    	if (!queue.offer(input, futureResult, leaveBy, deadline)){
+    		LOG.debug("Order queue of {} is full", machine.getMachineId());
+    		stats.reject(RejectionReason.QUEUE_FULL);
+    		futureResult.set(RpcResultBuilder.<Void>failed().withRpcError(MakeOrderOverloadError(machine, "Order queue is full", "queue-full")).build());
+    		return true;
+    	}
+    	
+    	// the machine may have been freed before the order was queued
+    	if (isFree(machine)){
+    		dispatchQueued(machine);
+    	}
+    	return true;
+    }
+    
+    /**
+     * Starts the queued orders the machine has room for: as many as there are
+     * free in-flight permits, or the next one in serialized mode.
+     */
+    private void dispatchQueued(final MachineContext machine){
+    	final OrderQueue queue = machine.getOrderQueue();
+    	if (isSerialized(machine)){
+    		OrderQueue.Entry next = queue.poll();
+    		// orders answered while they waited, past their deadline, are dropped
+    		while (next != null && next.getFutureResult().isDone()){
+    			next = queue.poll();
+    		}
+    		if (next != null){
+    			checkStatusAndMakeOrderItem(next.getInput(), next.getFutureResult(), 2, next.getDeadlineNanos(), next.getOrderDeadline());
+    		}
+    		return;
+    	}
+    	
+    	while (queue.size() > 0 && machine.getOrdersInFlight().tryAcquire()){
+    		OrderQueue.Entry next = queue.poll();
+    		while (next != null && next.getFutureResult().isDone()){
+    			next = queue.poll();
+    		}
+    		if (next == null){
+    			machine.getOrdersInFlight().release();
+    			return;
+    		}
+    		reserveAndDispense(machine, next.getInput(), next.getFutureResult(), next.getOrderDeadline());
+    	}
+    }
+    
+    private boolean isFree(final MachineContext machine){
+    	if (isSerialized(machine)){
+    		return statusCache.get() == VendingmachineStatus.Availability;
+    	}
+    	return machine.getOrdersInFlight().getInFlight() < machine.getOrdersInFlight().getLimit();
+    }
+    
+    /**
+     * Periodically turns down the queued orders past their deadline, and starts
+     * queued orders of machines freed without completing an order.
+     */
+    private void startQueueTimer(){
+    	queueTimer = Executors.newSingleThreadScheduledExecutor(
+    			new ThreadFactoryBuilder().setNameFormat("vendingmachine-queue-%d").setDaemon(true).build());
+    	final long period = Math.max(1, Math.min(orderQueueTimeout / 4, 100));
+    	queueTimer.scheduleWithFixedDelay(new Runnable(){
+    		
+    		@Override
+    		public void run(){
+    			try {
+    				sweepOrderQueues();
+    			}
+    			catch (RuntimeException e){
+    				LOG.warn("Failed to sweep the order queues", e);
+    			}
+    		}
+    	}, period, period, TimeUnit.MILLISECONDS);
+    }
+    
+    private void sweepOrderQueues(){
+    	final long now = System.nanoTime();
+    	for (MachineContext machine : machines.values()){
+    		final OrderQueue queue = machine.getOrderQueue();
+    		for (OrderQueue.Entry expired : queue.removeExpired(now)){
+    			final OrderDeadline deadline = expired.getOrderDeadline();
+    			if (deadline != null && deadline.hasPassed(now)){
+    				expire(deadline, expired.getFutureResult());
+    			}
+    			else if (!expired.getFutureResult().isDone()){
+    				stats.reject(RejectionReason.QUEUE_TIMEOUT);
+    				expired.getFutureResult().set(RpcResultBuilder.<Void>failed()
+    						.withRpcError(MakeOrderOverloadError(machine, "Order timed out in the queue", "queue-timeout")).build());
+    			}
+    		}
+    		if (queue.size() > 0 && isFree(machine)){
+    			dispatchQueued(machine);
+    		}
+    	}
+    }
+    
+    /**
+     * Hands the reserved items of an admitted order to the dispense scheduler.
+     * The order completes on its machine's shard once they are dispensed.
+     */
+    private void dispense(final makeOrderTask task){
+    	final OrderDeadline deadline = task.deadline;
+    	if (deadline != null){
+    		if (deadline.hasPassed(System.nanoTime())){
+    			expire(deadline, task.futureResult);
+    		}
+    		if (!deadline.startDispense()){
+    			task.expiredBeforeDispense();
+    			return;
+    		}
+    	}
+    	
+    	final MachineContext machine = task.machine;
+    	final Class<? extends VendingProducts> product = productOf(task.itemRequest);
+    	final long itemCount = itemCountOf(task.itemRequest);
+    	task.startPhase(OrderPhase.DISPENSE);
+    	if (journal != null){
+    		// journaled before close() may see the task, it then compensates the record
+    		task.journaled = journalOrder(machine, product, itemCount);
+    	}
+    	pendingOrders.replace(task.futureResult, NOT_DISPENSING, task);
+    	if (closing && task.settleDispense()){
+    		task.putBack(ProviderClosed());
+    		return;
+    	}
+    	
+    	final ListenableFuture<Void> dispensed = dispenseScheduler.dispense(machine, product, itemCount);
+    	if (task.journaled == null){
+    		Futures.addCallback(dispensed, task, shards.getShard(machine.getShard()));
+    		return;
+    	}
+    	
+    	// the order is only confirmed once it is journaled too
+    	Futures.addCallback(Futures.allAsList(stats.time(OrderPhase.DISPENSE, dispensed), task.journaled), task,
+    			shards.getShard(machine.getShard()));
+    }
+    
+    private void checkStatusAndMakeOrderItem (final MakeOrderInput input, final SettableFuture<RpcResult<Void>> futureResult, final int tries, final long queueDeadline, final OrderDeadline deadline){
+    	final Class<? extends VendingProducts> product = productOf(input);
+    	final long itemCount = itemCountOf(input);
+    	if (!checkOrderSize(itemCount, futureResult)){
+    		return;
+    	}
+    	
+    	if (statusCache.get() != null){
+    		takeMachineAndMakeOrderItem(input, futureResult, tries, queueDeadline, deadline);
+    		return;
+    	}
+    	
+    	// set once the items are taken out of stock, so that a failed commit can put them back
+    	final AtomicBoolean reserved = new AtomicBoolean();
+    	// set once the order waits in the queue, which then owns its result
+    	final AtomicBoolean queued = new AtomicBoolean();
+    	// the stock writer keeps off the container until this transaction is done
+    	stateWriter.orderTransactionOpened();
+    	final ReadWriteTransaction tx = dataProvider.newReadWriteTransaction();
+    	ListenableFuture<Optional<Vendingmachine>> readFuture = stats.time(OrderPhase.DATASTORE_READ, tx.read(LogicalDatastoreType.OPERATIONAL, VENDINGMACHINE_IID));
+    	
+    	
+    	final ListenableFuture<Void> commitFuture = Futures.transform(readFuture,  new AsyncFunction<Optional<Vendingmachine>,Void>(){
+    		
+    		@Override
+    		public ListenableFuture<Void> apply(
+    				final Optional<Vendingmachine> vendingmachineData) throws Exception{
+    			
+    			VendingmachineStatus vendingmachineStatus = VendingmachineStatus.Availability;
+    			if (vendingmachineData.isPresent()){
+    				vendingmachineStatus = vendingmachineData.get().getVendingmachineStatus();
+    			}
+    			
+    			LOG.debug("Read Vending Machine status: {}", vendingmachineStatus);
+    			if (vendingmachineStatus == VendingmachineStatus.Availability){
+    				if (!defaultMachine.getInventory().reserve(product, itemCount)){
+    					LOG.debug("Vending Machine is out or Products");
+    					stats.reject(RejectionReason.OUT_OF_STOCK);
+    					return Futures.immediateFailedCheckedFuture(new TransactionCommitFailedException("", OUT_OF_STOCK_ERROR));
+    				}
+    				reserved.set(true);
+    				
+    				LOG.debug("Setting Vendingmachine status to empty");
+    				
+    				tx.merge(LogicalDatastoreType.OPERATIONAL, VENDINGMACHINE_IID, VENDINGMACHINE_BY_STATUS.get(VendingmachineStatus.Empty));
+    				statusCache.writing(VendingmachineStatus.Empty);
+    				return stats.time(OrderPhase.STATUS_COMMIT, tx.submit());
+    			}
+    			
+    			LOG.debug("Your Order In Progress");
+    			
+    			if (enqueueOrder(defaultMachine, input, futureResult, queueDeadline, deadline)){
+    				queued.set(true);
+    			}
+    			else {
+    				stats.reject(RejectionReason.IN_USE);
+    			}
+    			return Futures.immediateFailedCheckedFuture(new TransactionCommitFailedException("", IN_USE_ERROR));
+    		}
+    		
+    	});
+    	
+    	Futures.addCallback( commitFuture, new FutureCallback<Void>(){
+    		
+    		@Override
+    		public void onSuccess (final Void result){
+    			stateWriter.orderTransactionClosed();
+    			// the status this order committed is known again, later orders can skip the read
+    			statusCache.committed(VendingmachineStatus.Empty);
+    			currentMakeOrderTask.set(futureResult);
+    			dispense(new makeOrderTask(defaultMachine, input, futureResult, tries, queueDeadline, deadline));
+    		}
+    		
+    		@Override
+    		public void onFailure (final Throwable ex){
+    			stateWriter.orderTransactionClosed();
+    			if (reserved.getAndSet(false)){
+    				defaultMachine.getInventory().release(product, itemCount);
+    			}
+    			if (queued.get()){
+    				return;
+    			}
+    			
+    			if (ex instanceof OptimisticLockFailedException){
+    				
     				if ((tries -1) > 0){
     					LOG.debug("Got OptimisticLockFailedExceptionp trying agin ");
     					
-    					checkStatusAndMakeOrderItem (input, futureResult, tries -1);
+    					checkStatusAndMakeOrderItem (input, futureResult, tries -1, queueDeadline, deadline);
     				}
     				else {
+    					stats.reject(RejectionReason.LOCK_RETRIES_EXHAUSTED);
     					futureResult.set(RpcResultBuilder.<Void>failed().withError(ErrorType.APPLICATION, ex.getMessage()).build());
     				}
     			}
@@ -314,64 +1991,418 @@ public class VendingmachineProvider implements BindingAwareProvider, Vendingmach
     	});
     }
     
-    private class makeOrderTask implements Callable<Void>{
+    /**
+     * Counterpart of {@link #checkStatusAndMakeOrderItem} while the status
+     * cache is valid: the machine is taken in memory and the empty status is
+     * written without reading it first. A conflicting write still fails the
+     * commit, the order is then retried through the datastore read.
+     */
+    private void takeMachineAndMakeOrderItem(final MakeOrderInput input, final SettableFuture<RpcResult<Void>> futureResult, final int tries, final long queueDeadline, final OrderDeadline deadline){
+    	final Class<? extends VendingProducts> product = productOf(input);
+    	final long itemCount = itemCountOf(input);
+    	
+    	if (!statusCache.tryAcquire()){
+    		if (statusCache.get() == null){
+    			checkStatusAndMakeOrderItem(input, futureResult, tries, queueDeadline, deadline);
+    			return;
+    		}
+    		LOG.debug("Your Order In Progress");
+    		if (!enqueueOrder(defaultMachine, input, futureResult, queueDeadline, deadline)){
+    			stats.reject(RejectionReason.IN_USE);
+    			futureResult.set(IN_USE);
+    		}
+    		return;
+    	}
+    	
+    	if (!defaultMachine.getInventory().reserve(product, itemCount)){
+    		statusCache.release();
+    		LOG.debug("Vending Machine is out or Products");
+    		stats.reject(RejectionReason.OUT_OF_STOCK);
+    		futureResult.set(OUT_OF_STOCK);
+    		return;
+    	}
+    	
+    	final WriteTransaction tx = dataProvider.newWriteOnlyTransaction();
+    	tx.merge(LogicalDatastoreType.OPERATIONAL, VENDINGMACHINE_IID, VENDINGMACHINE_BY_STATUS.get(VendingmachineStatus.Empty));
+    	statusCache.writing(VendingmachineStatus.Empty);
+    	
+    	final makeOrderTask task = new makeOrderTask(defaultMachine, input, futureResult, tries, queueDeadline, deadline);
+    	task.startPhase(OrderPhase.STATUS_COMMIT);
+    	Futures.addCallback(tx.submit(), task);
+    }
+    
+    /**
+     * Carries one order through its phases: taking the machine in serialized
+     * mode, dispensing, and giving the machine back in serialized mode. The same
+     * instance is the callback of every phase, so an order allocates no other
+     * callbacks on its way.
+     */
+    private class makeOrderTask implements FutureCallback<Object>{
     	
+    	final long startNanos = System.nanoTime();
+    	final MachineContext machine;
     	final MakeOrderInput itemRequest;
     	final SettableFuture<RpcResult<Void>> futureResult;
+    	final int tries;
+    	final long queueDeadline;
+    	final OrderDeadline deadline;
+    	// only touched by the callback of the current phase, which the previous phase hands over
+    	OrderPhase phase;
+    	long phaseStartNanos;
+    	ListenableFuture<Void> journaled;
+    	RpcResult<Void> result;
+    	// 1 once the dispense is settled, by its completion or by close()
+    	volatile int dispenseSettled;
     	
-    	public makeOrderTask (final MakeOrderInput itemRequest, final SettableFuture<RpcResult<Void>> futureResult){
+    	public makeOrderTask (final MachineContext machine, final MakeOrderInput itemRequest, final SettableFuture<RpcResult<Void>> futureResult, final int tries, final long queueDeadline, final OrderDeadline deadline){
     		
+    		this.machine = machine;
     		this.itemRequest = itemRequest;
     		this.futureResult = futureResult;
+    		this.tries = tries;
+    		this.queueDeadline = queueDeadline;
+    		this.deadline = deadline;
+    	}
+    	
+    	void startPhase(final OrderPhase phase){
+    		this.phase = phase;
+    		this.phaseStartNanos = System.nanoTime();
+    	}
+    	
+    	/**
+    	 * @return true for the first caller only, which settles the order
+    	 */
+    	boolean settleDispense(){
+    		return DISPENSE_SETTLED.compareAndSet(this, 0, 1);
     	}
     	
     	@Override 
-    	public Void call(){
-    		
-    		try {
-    			long maxOrderItems = VendingmachineProvider.this.maxOrderItems.get();
-    			Thread.sleep(2);
+    	public void onSuccess(final Object ignored){
+    		switch (phase){
+    		case STATUS_COMMIT:
+    			stats.record(OrderPhase.STATUS_COMMIT, phaseStartNanos);
+    			currentMakeOrderTask.set(futureResult);
+    			dispense(this);
+    			break;
+    		case DISPENSE:
+    			if (!settleDispense()){
+    				// put back by close()
+    				break;
+    			}
+    			recordDispense();
+    			// the items were already taken out of stock when the order was admitted
+    			machine.getOrdersMade().incrementAndGet();
+    			salesAnalytics.orderMade(productOf(itemRequest), itemCountOf(itemRequest), System.nanoTime());
+    			if (audit != null){
+    				audit.record(AuditTrail.EventType.ORDER_MADE, machine.getMachineId(), productOf(itemRequest), itemCountOf(itemRequest));
+    			}
+    			stateWriter.stockChanged(machine);
+    			notifications.stockChanged(machine);
+    			complete(ORDER_MADE);
+    			break;
+    		default:
+    			stats.record(OrderPhase.STATUS_RESET, phaseStartNanos);
+    			statusCache.committed(VendingmachineStatus.Availability);
+    			finish();
     		}
-    		catch (InterruptedException e){
-    			LOG.info("Interrupted while making the order");
+    	}
+    	
+    	@Override
+    	public void onFailure(final Throwable t){
+    		switch (phase){
+    		case STATUS_COMMIT:
+    			stats.record(OrderPhase.STATUS_COMMIT, phaseStartNanos);
+    			machineNotTaken(t);
+    			break;
+    		case DISPENSE:
+    			if (settleDispense()){
+    				recordDispense();
+    				LOG.warn("Failed to make order {}", itemRequest, t);
+    				putBack(RpcResultBuilder.<Void>failed().withError(ErrorType.APPLICATION, "operation-failed", "Order could not be dispensed", null, null, t).build());
+    			}
+    			break;
+    		default:
+    			stats.record(OrderPhase.STATUS_RESET, phaseStartNanos);
+    			LOG.error("Failed to update Vendingmachine Stutus", t);
+    			statusCache.invalidate();
+    			finish();
     		}
-    		
-    		ordersMade.incrementAndGet();
-    		amountOfProductInStock.getAndDecrement();
-    		
-    		if(outOfStock() ){
-    			LOG.info("Vending Machine is out of item, SORRY");
-    			
-    			notificationService.publish( new VendingmachineOutOfItemsBuilder().build());
+    	}
+    	
+    	private void recordDispense(){
+    		// with a journal the dispense is timed on its own future
+    		if (journaled == null){
+    			stats.record(OrderPhase.DISPENSE, phaseStartNanos);
     		}
+    	}
+    	
+    	private void machineNotTaken(final Throwable ex){
+    		defaultMachine.getInventory().release(productOf(itemRequest), itemCountOf(itemRequest));
+    		statusCache.invalidate();
     		
-    		setVendingMachineStatusAvaliable (new Function<Boolean, Void>(){
-    			
-    			@Override
-    			public Void apply (final Boolean result){
-    				currentMakeOrderTask.set(null);
-    				LOG.debug("Progress done");
-    				
-    				futureResult.set(RpcResultBuilder.<Void>success().build());
-    				return null;
-    				
+    		if (ex instanceof OptimisticLockFailedException && (tries -1) > 0){
+    			LOG.debug("Status write conflicted, reading it from the datastore");
+    			checkStatusAndMakeOrderItem (itemRequest, futureResult, tries -1, queueDeadline, deadline);
+    		}
+    		else {
+    			LOG.debug("Failed to commit VM status", ex);
+    			if (ex instanceof OptimisticLockFailedException){
+    				stats.reject(RejectionReason.LOCK_RETRIES_EXHAUSTED);
     			}
-    		});
+    			futureResult.set(RpcResultBuilder.<Void>failed().withError(ErrorType.APPLICATION, ex.getMessage()).build());
+    		}
+    	}
+    	
+    	/**
+    	 * Puts back the items of an order answered when its deadline passed,
+    	 * without dispensing them.
+    	 */
+    	void expiredBeforeDispense(){
+    		machine.getInventory().release(productOf(itemRequest), itemCountOf(itemRequest));
+    		if (audit != null){
+    			audit.record(AuditTrail.EventType.ORDER_FAILED, machine.getMachineId(), productOf(itemRequest), itemCountOf(itemRequest));
+    		}
+    		complete(DEADLINE_EXPIRED);
+    	}
+    	
+    	/**
+    	 * Answers an order that was not dispensed with {@code result} and puts
+    	 * its items back.
+    	 */
+    	void putBack(final RpcResult<Void> result){
+    		final Class<? extends VendingProducts> product = productOf(itemRequest);
+    		final long itemCount = itemCountOf(itemRequest);
+    		machine.getInventory().release(product, itemCount);
+    		if (audit != null){
+    			audit.record(AuditTrail.EventType.ORDER_FAILED, machine.getMachineId(), product, itemCount);
+    		}
+    		stateWriter.stockChanged(machine);
+    		if (journaled != null){
+    			cancelJournaled(machine, product, itemCount, journaled);
+    		}
+    		complete(result);
+    	}
+    	
+    	private void complete(final RpcResult<Void> result){
+    		if (!isSerialized(machine)){
+    			machine.getOrdersInFlight().release();
+    			machine.getOrderQueue().recordService(System.nanoTime() - startNanos);
+    			futureResult.set(result);
+    			dispatchQueued(machine);
+    			return;
+    		}
+    		
+    		this.result = result;
+    		if (closing){
+    			// the status goes away with the provider, and the task stays in its dispense phase
+    			finish();
+    			return;
+    		}
+    		setVendingMachineStatusAvaliable (this);
+    	}
+    	
+    	/**
+    	 * Answers a serialized order once its machine is given back.
+    	 */
+    	private void finish(){
+    		currentMakeOrderTask.set(null);
+    		machine.getOrderQueue().recordService(System.nanoTime() - startNanos);
+    		LOG.debug("Progress done");
     		
-    		return null;
+    		futureResult.set(result);
+    		dispatchQueued(machine);
     	}
-    	    	
+    	
     }
     
-    /*@Override
+    @Override
     public void clearOrdersMade(){
-    	LOG.info("clearOrdersMade");
-    	ordersMade.set(0);
-    }*/
+    	LOG.debug("clearOrdersMade");
+    	for (MachineContext machine : machines.values()){
+    		machine.getOrdersMade().set(0);
+    	}
+    }
+    
+    @Override
+    public void clearOrderStats(){
+    	LOG.debug("clearOrderStats");
+    	stats.clear();
+    }
     
- //  @Override
+    @Override
     public Long getOrdersMade(){
-    	return ordersMade.get();
+    	long ordersMade = 0;
+    	for (MachineContext machine : machines.values()){
+    		ordersMade += machine.getOrdersMade().get();
+    	}
+    	return ordersMade;
+    }
+    
+    @Override
+    public Long getOrdersInFlight(){
+    	long inFlight = currentMakeOrderTask.get() != null ? 1 : 0;
+    	for (MachineContext machine : machines.values()){
+    		inFlight += machine.getOrdersInFlight().getInFlight();
+    	}
+    	return inFlight;
+    }
+    
+    @Override
+    public Long getOrderQueueDepth(){
+    	long depth = 0;
+    	for (MachineContext machine : machines.values()){
+    		depth += machine.getOrderQueue().size();
+    	}
+    	return depth;
+    }
+    
+    @Override
+    public Long getRejectedQueueFull(){
+    	return stats.getRejections(RejectionReason.QUEUE_FULL);
+    }
+    
+    @Override
+    public Long getRejectedQueueTimeout(){
+    	return stats.getRejections(RejectionReason.QUEUE_TIMEOUT);
+    }
+
+    @Override
+    public Long getDuplicateOrders(){
+    	return orderDedup != null ? orderDedup.getDuplicates() : 0L;
+    }
+    
+    @Override
+    public Long getRejectedDeadlineExpired(){
+    	return stats.getRejections(RejectionReason.DEADLINE_EXPIRED);
+    }
+
+    @Override
+    public Long getAuditEventsDropped(){
+    	return audit != null ? audit.getDropped() : 0L;
+    }
+
+    @Override
+    public Long getRejectedNotOwner(){
+    	return stats.getRejections(RejectionReason.NOT_OWNER);
+    }
+    
+    @Override
+    public Long getExecutorQueueDepth(){
+    	return shards != null ? (long) shards.getQueueDepth() : 0L;
+    }
+    
+    @Override
+    public Long getRejectedOutOfStock(){
+    	return stats.getRejections(RejectionReason.OUT_OF_STOCK);
+    }
+    
+    @Override
+    public Long getRejectedInUse(){
+    	return stats.getRejections(RejectionReason.IN_USE);
+    }
+    
+    @Override
+    public Long getRejectedLockRetriesExhausted(){
+    	return stats.getRejections(RejectionReason.LOCK_RETRIES_EXHAUSTED);
+    }
+    
+    @Override
+    public Long getRejectedTooManyInFlight(){
+    	return stats.getRejections(RejectionReason.TOO_MANY_IN_FLIGHT);
+    }
+    
+    @Override
+    public Long getRejectedOrderTooLarge(){
+    	return stats.getRejections(RejectionReason.ORDER_TOO_LARGE);
+    }
+    
+    @Override
+    public Long getRejectedUnknownMachine(){
+    	return stats.getRejections(RejectionReason.UNKNOWN_MACHINE);
+    }
+    
+    @Override
+    public Long getDatastoreReadCount(){
+    	return stats.getLatency(OrderPhase.DATASTORE_READ).getCount();
+    }
+    
+    @Override
+    public Long getDatastoreReadP50(){
+    	return micros(stats.getLatency(OrderPhase.DATASTORE_READ).getQuantileNanos(0.5));
+    }
+    
+    @Override
+    public Long getDatastoreReadP99(){
+    	return micros(stats.getLatency(OrderPhase.DATASTORE_READ).getQuantileNanos(0.99));
+    }
+    
+    @Override
+    public Long getDatastoreReadMax(){
+    	return micros(stats.getLatency(OrderPhase.DATASTORE_READ).getMaxNanos());
+    }
+    
+    @Override
+    public Long getStatusCommitCount(){
+    	return stats.getLatency(OrderPhase.STATUS_COMMIT).getCount();
+    }
+    
+    @Override
+    public Long getStatusCommitP50(){
+    	return micros(stats.getLatency(OrderPhase.STATUS_COMMIT).getQuantileNanos(0.5));
+    }
+    
+    @Override
+    public Long getStatusCommitP99(){
+    	return micros(stats.getLatency(OrderPhase.STATUS_COMMIT).getQuantileNanos(0.99));
+    }
+    
+    @Override
+    public Long getStatusCommitMax(){
+    	return micros(stats.getLatency(OrderPhase.STATUS_COMMIT).getMaxNanos());
+    }
+    
+    @Override
+    public Long getDispenseCount(){
+    	return stats.getLatency(OrderPhase.DISPENSE).getCount();
+    }
+    
+    @Override
+    public Long getDispenseP50(){
+    	return micros(stats.getLatency(OrderPhase.DISPENSE).getQuantileNanos(0.5));
+    }
+    
+    @Override
+    public Long getDispenseP99(){
+    	return micros(stats.getLatency(OrderPhase.DISPENSE).getQuantileNanos(0.99));
+    }
+    
+    @Override
+    public Long getDispenseMax(){
+    	return micros(stats.getLatency(OrderPhase.DISPENSE).getMaxNanos());
+    }
+    
+    @Override
+    public Long getStatusResetCount(){
+    	return stats.getLatency(OrderPhase.STATUS_RESET).getCount();
+    }
+    
+    @Override
+    public Long getStatusResetP50(){
+    	return micros(stats.getLatency(OrderPhase.STATUS_RESET).getQuantileNanos(0.5));
+    }
+    
+    @Override
+    public Long getStatusResetP99(){
+    	return micros(stats.getLatency(OrderPhase.STATUS_RESET).getQuantileNanos(0.99));
+    }
+    
+    @Override
+    public Long getStatusResetMax(){
+    	return micros(stats.getLatency(OrderPhase.STATUS_RESET).getMaxNanos());
+    }
+    
+    private static long micros(final long nanos){
+    	return TimeUnit.NANOSECONDS.toMicros(nanos);
     }
     
 }
@@ -8,6 +8,10 @@
 package org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.impl.rev141210;
 
 import org.opendaylight.vendingmachine.impl.VendingmachineProvider;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Juice;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Sandwich;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Snacks;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Water;
 
 public class VendingmachineModule extends org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.impl.rev141210.AbstractVendingmachineModule {
     public VendingmachineModule(org.opendaylight.controller.config.api.ModuleIdentifier identifier, org.opendaylight.controller.config.api.DependencyResolver dependencyResolver) {
@@ -26,6 +30,36 @@ public class VendingmachineModule extends org.opendaylight.yang.gen.v1.urn.opend
     @Override
     public java.lang.AutoCloseable createInstance() {
         VendingmachineProvider provider = new VendingmachineProvider();
+        provider.setConcurrentOrders(getConcurrentOrders());
+        provider.setMaxOrdersInFlight(getMaxOrdersInFlight());
+        provider.setOrderShards(getOrderShards());
+        provider.setOperationalWriteInterval(getOperationalWriteInterval());
+        provider.setOperationalWriteBatchSize(getOperationalWriteBatchSize());
+        provider.setDispenseTime(Snacks.class, getSnacksDispenseTime());
+        provider.setDispenseTime(Juice.class, getJuiceDispenseTime());
+        provider.setDispenseTime(Water.class, getWaterDispenseTime());
+        provider.setDispenseTime(Sandwich.class, getSandwichDispenseTime());
+        provider.setLowStockThreshold(getLowStockThreshold());
+        provider.setNotificationWindow(getNotificationWindow());
+        provider.setJournalDirectory(getJournalDirectory());
+        provider.setJournalSize(getJournalSize());
+        provider.setOrderQueueCapacity(getOrderQueueCapacity());
+        provider.setOrderQueueTimeout(getOrderQueueTimeout());
+        provider.setNodeId(getNodeId());
+        provider.setHeartbeatInterval(getHeartbeatInterval());
+        provider.setMemberTimeout(getMemberTimeout());
+        provider.setImportBatchSize(getImportBatchSize());
+        provider.setShutdownTimeout(getShutdownTimeout());
+        provider.setOrderDedupSize(getOrderDedupSize());
+        provider.setOrderDedupExpiry(getOrderDedupExpiry());
+        provider.setAuditDirectory(getAuditDirectory());
+        provider.setAuditBufferSize(getAuditBufferSize());
+        provider.setAuditFileSize(getAuditFileSize());
+        provider.setAuditFiles(getAuditFiles());
+        provider.setAuditBlockWhenFull(getAuditBlockWhenFull());
+        if (getRootRuntimeBeanRegistratorWrapper() != null) {
+            provider.setRuntimeRegistration(getRootRuntimeBeanRegistratorWrapper().register(provider));
+        }
         getBrokerDependency().registerProvider(provider);
         return provider;
     }
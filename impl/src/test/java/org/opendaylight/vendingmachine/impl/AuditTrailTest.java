@@ -0,0 +1,179 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Juice;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Water;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AuditTrailTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEventsAreReadBack() throws Exception {
+        AuditTrail audit = new AuditTrail(folder.getRoot(), 16, 1 << 20, 2, false);
+        long before = System.currentTimeMillis();
+        audit.record(AuditTrail.EventType.ORDER_MADE, "m1", Water.class, 3);
+        audit.record(AuditTrail.EventType.ORDER_FAILED, "m2", Juice.class, 1);
+        audit.record(AuditTrail.EventType.REFILLED, "m1", Water.class, -2);
+        audit.close();
+
+        final List<String> events = new ArrayList<>();
+        final long[] times = new long[3];
+        AuditTrail.read(new File(folder.getRoot(), AuditTrail.FILE_NAME), new AuditTrail.EventHandler() {
+            @Override
+            public void event(final long timeMillis, final AuditTrail.EventType type, final String machineId,
+                    final Class<? extends VendingProducts> product, final long items) {
+                times[events.size()] = timeMillis;
+                events.add(type + " " + machineId + " " + InventoryFile.nameOf(product) + " " + items);
+            }
+        });
+        assertEquals(3, events.size());
+        assertEquals("ORDER_MADE m1 water 3", events.get(0));
+        assertEquals("ORDER_FAILED m2 juice 1", events.get(1));
+        assertEquals("REFILLED m1 water -2", events.get(2));
+        assertTrue(times[0] >= before && times[2] >= times[0]);
+
+        // events recorded once closed are dropped
+        audit.record(AuditTrail.EventType.ORDER_MADE, "m1", Water.class, 1);
+        assertEquals(1, audit.getDropped());
+    }
+
+    @Test
+    public void testFullBufferBlocksOrDrops() throws Exception {
+        for (boolean blockWhenFull : new boolean[] {true, false}) {
+            File directory = folder.newFolder();
+            final AuditTrail audit = new AuditTrail(directory, 2, 1 << 20, 1, blockWhenFull);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final String machineId = "m" + i;
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < 10000; j++) {
+                            audit.record(AuditTrail.EventType.ORDER_MADE, machineId, Water.class, 1);
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            audit.close();
+
+            long written = countEvents(new File(directory, AuditTrail.FILE_NAME));
+            assertEquals(40000, written + audit.getDropped());
+            if (blockWhenFull) {
+                assertEquals(0, audit.getDropped());
+            }
+        }
+    }
+
+    @Test
+    public void testCloseReleasesBlockedRecorders() throws Exception {
+        final AuditTrail audit = new AuditTrail(folder.getRoot(), 2, 1 << 20, 1, true);
+        final AtomicBoolean stop = new AtomicBoolean();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!stop.get()) {
+                        audit.record(AuditTrail.EventType.ORDER_MADE, "m1", Water.class, 1);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        Thread.sleep(50);
+        audit.close();
+
+        // the ring stays full once the writer stopped, a recorder waiting for room gives up
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    @Test
+    public void testCloseAccountsForEveryEvent() throws Exception {
+        File directory = folder.newFolder();
+        final AuditTrail audit = new AuditTrail(directory, 64, 1 << 20, 1, true);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        audit.record(AuditTrail.EventType.ORDER_MADE, "m1", Water.class, 1);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        // closed while the recorders are still at it, events in flight are either written or dropped
+        Thread.sleep(20);
+        audit.close();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long written = countEvents(new File(directory, AuditTrail.FILE_NAME));
+        assertEquals(400000, written + audit.getDropped());
+    }
+
+    @Test
+    public void testRollOver() throws Exception {
+        AuditTrail audit = new AuditTrail(folder.getRoot(), 1024, 100, 3, true);
+        for (int i = 0; i < 1000; i++) {
+            audit.record(AuditTrail.EventType.REFILLED, "machine-" + i, Water.class, i);
+        }
+        audit.close();
+
+        File current = new File(folder.getRoot(), AuditTrail.FILE_NAME);
+        assertTrue(current.exists());
+        assertTrue(new File(folder.getRoot(), AuditTrail.FILE_NAME + ".1").exists());
+        assertTrue(new File(folder.getRoot(), AuditTrail.FILE_NAME + ".2").exists());
+        assertFalse(new File(folder.getRoot(), AuditTrail.FILE_NAME + ".3").exists());
+        assertTrue(current.length() <= 200);
+
+        // the trail of the previous run is kept
+        long lastEvents = countEvents(current);
+        new AuditTrail(folder.getRoot(), 16, 100, 3, true).close();
+        assertEquals(lastEvents, countEvents(new File(folder.getRoot(), AuditTrail.FILE_NAME + ".1")));
+        assertEquals(0, countEvents(current));
+    }
+
+    private static long countEvents(final File file) throws IOException {
+        return AuditTrail.read(file, new AuditTrail.EventHandler() {
+            @Override
+            public void event(final long timeMillis, final AuditTrail.EventType type, final String machineId,
+                    final Class<? extends VendingProducts> product, final long items) {
+            }
+        });
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.test.AbstractDataBrokerTest;
+import org.opendaylight.controller.sal.binding.api.BindingAwareBroker;
+import org.opendaylight.controller.sal.binding.api.NotificationProviderService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MachineId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.RefullItemInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingmachineService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Water;
+import org.opendaylight.yangtools.yang.common.RpcError;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Several nodes in one JVM, sharing one in-memory data broker and forwarding
+ * requests to each other through a {@link LocalOrderForwarder}.
+ */
+public class ClusterOwnershipTest extends AbstractDataBrokerTest {
+
+    private static final long HEARTBEAT_INTERVAL = 50;
+    private static final long MEMBER_TIMEOUT = 300;
+    private static final long REFILL_QUANTITY = 5;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final LocalOrderForwarder forwarder = new LocalOrderForwarder();
+    private final Map<String, VendingmachineProvider> nodes = new HashMap<>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (String nodeId : new ArrayList<>(nodes.keySet())) {
+            stopNode(nodeId);
+        }
+    }
+
+    @Test
+    public void testOrdersAreServedByTheOwner() throws Exception {
+        startNodes("node-1", "node-2", "node-3");
+        final List<String> members = awaitMembers("node-1", "node-2", "node-3");
+
+        final List<String> machineIds = machineIds(30);
+        int i = 0;
+        for (String machineId : machineIds) {
+            refill(node("node-" + (i++ % 3 + 1)), machineId);
+        }
+        // every node takes an order for every machine
+        for (String machineId : machineIds) {
+            for (VendingmachineProvider node : nodes.values()) {
+                assertTrue(order(node, machineId).isSuccessful());
+            }
+        }
+
+        final Map<String, Long> expected = new HashMap<>();
+        for (String machineId : machineIds) {
+            final String owner = ClusterMembership.ownerOf(machineId, members);
+            expected.put(owner, (expected.containsKey(owner) ? expected.get(owner) : 0) + nodes.size());
+        }
+        for (Map.Entry<String, VendingmachineProvider> node : nodes.entrySet()) {
+            final Long owned = expected.get(node.getKey());
+            assertEquals("orders made on " + node.getKey(), owned != null ? owned : 0,
+                    node.getValue().getOrdersMade().longValue());
+        }
+    }
+
+    @Test
+    public void testFailedNodesMachinesKeepTheirStock() throws Exception {
+        startNodes("node-1", "node-2", "node-3");
+        final List<String> members = awaitMembers("node-1", "node-2", "node-3");
+
+        final List<String> machineIds = machineIds(12);
+        for (String machineId : machineIds) {
+            refill(node("node-1"), machineId);
+            assertTrue(order(node("node-1"), machineId).isSuccessful());
+        }
+
+        // the owner of the first machine leaves, the others take its machines over
+        final String leaving = ClusterMembership.ownerOf(machineIds.get(0), members);
+        stopNode(leaving);
+        final String survivor = nodes.keySet().iterator().next();
+        awaitMembers(nodes.keySet().toArray(new String[nodes.size()]));
+
+        for (String machineId : machineIds) {
+            assertEquals("water left in " + machineId, REFILL_QUANTITY - 1, orderAll(node(survivor), machineId));
+        }
+    }
+
+    @Test
+    public void testJoiningNodeTakesMachinesOverWithTheirStock() throws Exception {
+        startNodes("node-1");
+        awaitMembers("node-1");
+
+        final List<String> machineIds = machineIds(12);
+        for (String machineId : machineIds) {
+            refill(node("node-1"), machineId);
+            assertTrue(order(node("node-1"), machineId).isSuccessful());
+        }
+
+        startNodes("node-2");
+        final List<String> members = awaitMembers("node-1", "node-2");
+        boolean moved = false;
+        for (String machineId : machineIds) {
+            moved |= "node-2".equals(ClusterMembership.ownerOf(machineId, members));
+            assertEquals("water left in " + machineId, REFILL_QUANTITY - 1, orderAll(node("node-1"), machineId));
+        }
+        assertTrue("no machine moved to the new node", moved);
+    }
+
+    @Test
+    public void testOwnerIsStableForUnchangedMembers() {
+        final List<String> members = ImmutableList.of("node-1", "node-2", "node-3");
+        final Map<String, Integer> owned = new HashMap<>();
+        for (String machineId : machineIds(300)) {
+            final String owner = ClusterMembership.ownerOf(machineId, members);
+            assertEquals(owner, ClusterMembership.ownerOf(machineId, ImmutableList.of("node-3", "node-1", "node-2")));
+            owned.put(owner, (owned.containsKey(owner) ? owned.get(owner) : 0) + 1);
+
+            // only the machines of a leaving member move
+            final String remaining = ClusterMembership.ownerOf(machineId, ImmutableList.of("node-1", "node-3"));
+            if (!"node-2".equals(owner)) {
+                assertEquals(owner, remaining);
+            }
+        }
+        assertEquals(3, owned.size());
+        for (int count : owned.values()) {
+            assertTrue("unbalanced ownership " + owned, count > 50);
+        }
+    }
+
+    private void startNodes(final String... nodeIds) {
+        for (String nodeId : nodeIds) {
+            final VendingmachineProvider provider = new VendingmachineProvider();
+            provider.setConcurrentOrders(true);
+            provider.setNodeId(nodeId);
+            provider.setHeartbeatInterval(HEARTBEAT_INTERVAL);
+            provider.setMemberTimeout(MEMBER_TIMEOUT);
+            provider.setOrderForwarder(forwarder);
+            provider.setOperationalWriteInterval(10);
+            for (Class<? extends VendingProducts> product : ProductInventory.PRODUCTS) {
+                provider.setDispenseTime(product, 0);
+            }
+            provider.onSessionInitiated(session(getDataBroker()));
+            forwarder.register(nodeId, provider);
+            nodes.put(nodeId, provider);
+        }
+    }
+
+    private void stopNode(final String nodeId) throws Exception {
+        forwarder.unregister(nodeId);
+        nodes.remove(nodeId).close();
+    }
+
+    private VendingmachineProvider node(final String nodeId) {
+        return nodes.get(nodeId);
+    }
+
+    private List<String> awaitMembers(final String... nodeIds) throws InterruptedException {
+        final List<String> expected = ImmutableList.copyOf(new TreeSet<>(ImmutableList.copyOf(nodeIds)));
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        for (VendingmachineProvider node : nodes.values()) {
+            while (!node.getLiveMembers().equals(expected)) {
+                assertTrue("members are " + node.getLiveMembers() + ", not " + expected,
+                        System.currentTimeMillis() < deadline);
+                Thread.sleep(HEARTBEAT_INTERVAL / 2);
+            }
+        }
+        return expected;
+    }
+
+    private void refill(final VendingmachineProvider node, final String machineId) throws Exception {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            final RpcResult<Void> result = node.refullItem(new RefullItemInputBuilder()
+                    .setMachineId(new MachineId(machineId))
+                    .setQuantityofproductprovide(REFILL_QUANTITY).build()).get(5, TimeUnit.SECONDS);
+            if (!isMoving(result)) {
+                assertTrue("refill of " + machineId + " failed: " + result.getErrors(), result.isSuccessful());
+                return;
+            }
+            awaitRetry(deadline, result);
+        }
+    }
+
+    /**
+     * Orders one water, retrying while the machine moves between nodes.
+     */
+    private RpcResult<Void> order(final VendingmachineProvider node, final String machineId) throws Exception {
+        final MakeOrderInput input = new MakeOrderInputBuilder()
+                .setMachineId(new MachineId(machineId)).setItemtype(Water.class).setNumberofitems(1L).build();
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            final RpcResult<Void> result = node.makeOrder(input).get(5, TimeUnit.SECONDS);
+            if (!isMoving(result)) {
+                return result;
+            }
+            awaitRetry(deadline, result);
+        }
+    }
+
+    /**
+     * @return number of water orders made before the machine ran out of water
+     */
+    private long orderAll(final VendingmachineProvider node, final String machineId) throws Exception {
+        long made = 0;
+        while (order(node, machineId).isSuccessful()) {
+            made++;
+            assertFalse("more water than ever refilled in " + machineId, made > REFILL_QUANTITY);
+        }
+        return made;
+    }
+
+    private static boolean isMoving(final RpcResult<Void> result) {
+        for (RpcError error : result.getErrors()) {
+            if ("ownership-moving".equals(error.getApplicationTag())
+                    || RejectingOrderForwarder.NOT_OWNER_APP_TAG.equals(error.getApplicationTag())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void awaitRetry(final long deadline, final RpcResult<Void> result) throws InterruptedException {
+        if (System.currentTimeMillis() > deadline) {
+            fail("machine did not settle on an owner: " + result.getErrors());
+        }
+        Thread.sleep(HEARTBEAT_INTERVAL / 2);
+    }
+
+    private static List<String> machineIds(final int count) {
+        final List<String> machineIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            machineIds.add("machine-" + i);
+        }
+        return machineIds;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BindingAwareBroker.ProviderContext session(final DataBroker dataBroker) {
+        final BindingAwareBroker.ProviderContext session = mock(BindingAwareBroker.ProviderContext.class);
+        when(session.getSALService(DataBroker.class)).thenReturn(dataBroker);
+        when(session.getSALService(NotificationProviderService.class))
+                .thenReturn(mock(NotificationProviderService.class));
+        when(session.addRpcImplementation(eq(VendingmachineService.class), any(VendingmachineService.class)))
+                .thenReturn(mock(BindingAwareBroker.RpcRegistration.class));
+        return session;
+    }
+}
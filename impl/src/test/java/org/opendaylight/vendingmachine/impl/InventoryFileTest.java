@@ -0,0 +1,146 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.InventoryFormat;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Juice;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Water;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class InventoryFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (InventoryFormat format : InventoryFormat.values()) {
+            File file = new File(folder.getRoot(), "inventory-" + format);
+            try (InventoryFile.Writer writer = InventoryFile.write(file, format)) {
+                for (int i = 0; i < 100; i++) {
+                    ProductInventory inventory = new ProductInventory(i);
+                    inventory.refill(Juice.class, 0xffffffffL);
+                    writer.machine("machine," + i, inventory);
+                }
+                writer.commit();
+            }
+            assertFalse(new File(file.getPath() + ".tmp").exists());
+
+            Map<String, Long> stock = read(file, format);
+            assertEquals(100 * ProductInventory.PRODUCTS.size(), stock.size());
+            assertEquals(Long.valueOf(42), stock.get("machine,42/water"));
+            assertEquals(Long.valueOf(0xffffffffL), stock.get("machine,42/juice"));
+        }
+    }
+
+    @Test
+    public void testCsvSkipsHeaderAndComments() throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), (InventoryFile.CSV_HEADER + "\n# restocked today\n\nm1,water,3\nm1, juice ,4\n")
+                .getBytes(StandardCharsets.UTF_8));
+
+        Map<String, Long> stock = read(file, InventoryFormat.Csv);
+        assertEquals(2, stock.size());
+        assertEquals(Long.valueOf(3), stock.get("m1/water"));
+        assertEquals(Long.valueOf(4), stock.get("m1/juice"));
+    }
+
+    @Test
+    public void testMalformedCsvIsRejected() throws Exception {
+        assertMalformed("m1,water,3\nm1,cola,4\n", "Line 2: unknown product cola");
+        assertMalformed("m1,water,-1\n", "Line 1: number-in-stock out of range");
+        assertMalformed("m1,water,lots\n", "Line 1: invalid number-in-stock");
+        assertMalformed("m1,water,\n", "Line 1: invalid number-in-stock");
+        assertMalformed("m1,water,3\nm1,water,99999999999999999999\n", "Line 2: number-in-stock out of range");
+        assertMalformed("m1 water 3\n", "Line 1: expected machine-id,product,number-in-stock");
+    }
+
+    @Test
+    public void testTruncatedBinaryIsRejected() throws Exception {
+        File file = new File(folder.getRoot(), "inventory");
+        try (InventoryFile.Writer writer = InventoryFile.write(file, InventoryFormat.Binary)) {
+            writer.machine("m1", new ProductInventory(200));
+            writer.machine("m2", new ProductInventory(200));
+            writer.commit();
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        try {
+            read(file, InventoryFormat.Binary);
+            fail("truncated file read");
+        } catch (InventoryFile.FormatException e) {
+            assertEquals("Record 2: truncated", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testUncommittedWriterLeavesFileAlone() throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), "m1,water,3\n".getBytes(StandardCharsets.UTF_8));
+        try (InventoryFile.Writer writer = InventoryFile.write(file, InventoryFormat.Csv)) {
+            writer.machine("m2", new ProductInventory(5));
+        }
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        assertEquals(1, read(file, InventoryFormat.Csv).size());
+    }
+
+    @Test
+    public void testVarint() throws Exception {
+        File file = folder.newFile();
+        for (long value : new long[] {0, 1, 127, 128, 300, 0xffffffffL, Long.MAX_VALUE}) {
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+                InventoryFile.writeVarint(out, value);
+            }
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                assertEquals(value, InventoryFile.readVarint(in));
+            }
+        }
+    }
+
+    private void assertMalformed(final String content, final String message) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        try {
+            read(file, InventoryFormat.Csv);
+            fail("malformed file read: " + content);
+        } catch (InventoryFile.FormatException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    private static Map<String, Long> read(final File file, final InventoryFormat format) throws IOException {
+        final Map<String, Long> stock = new HashMap<>();
+        InventoryFile.read(file, format, new InventoryFile.SlotHandler() {
+            @Override
+            public void slot(final String machineId, final Class<? extends VendingProducts> product,
+                    final long inStock) {
+                stock.put(machineId + "/" + InventoryFile.nameOf(product), inStock);
+            }
+        });
+        return stock;
+    }
+}
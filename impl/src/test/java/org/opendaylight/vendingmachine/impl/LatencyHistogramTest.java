@@ -0,0 +1,60 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testBucketBoundsContainValue() {
+        for (long value = 0; value < 1 << 20; value += 7) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(value <= LatencyHistogram.upperBoundOf(index));
+            assertTrue(index == 0 || value > LatencyHistogram.upperBoundOf(index - 1));
+        }
+        assertTrue(LatencyHistogram.indexOf(Long.MAX_VALUE) < (64 - 4) * 16);
+    }
+
+    @Test
+    public void testQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(100000, histogram.getMaxNanos());
+        long p50 = histogram.getQuantileNanos(0.5);
+        assertTrue(p50 >= 50000 && p50 <= 50000 + 50000 / 16);
+        long p99 = histogram.getQuantileNanos(0.99);
+        assertTrue(p99 >= 99000 && p99 <= 100000);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getQuantileNanos(0.99));
+    }
+
+    @Test
+    public void testRejectionsAreCleared() {
+        OrderStats stats = new OrderStats();
+        stats.reject(RejectionReason.IN_USE);
+        stats.reject(RejectionReason.IN_USE);
+        stats.record(OrderPhase.DISPENSE, System.nanoTime());
+
+        assertEquals(2, stats.getRejections(RejectionReason.IN_USE));
+        assertEquals(0, stats.getRejections(RejectionReason.OUT_OF_STOCK));
+        assertEquals(1, stats.getLatency(OrderPhase.DISPENSE).getCount());
+
+        stats.clear();
+        assertEquals(0, stats.getRejections(RejectionReason.IN_USE));
+        assertEquals(0, stats.getLatency(OrderPhase.DISPENSE).getCount());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.opendaylight.controller.sal.binding.api.NotificationProviderService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Refullvendingmachine;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingmachineLowStock;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingmachineOutOfItems;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Water;
+import org.opendaylight.yangtools.yang.binding.Notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class NotificationStageTest {
+    @Test
+    public void testOnlyLevelChangesArePublished() throws Exception {
+        NotificationProviderService notificationService = mock(NotificationProviderService.class);
+        NotificationStage stage = new NotificationStage(notificationService, 2, 50);
+        MachineContext machine = new MachineContext("machine-1", 0, 5, 1);
+
+        // a burst within one window: water goes from 5 to 0, one notification
+        for (int i = 0; i < 5; i++) {
+            machine.getInventory().reserve(Water.class, 1);
+            stage.stockChanged(machine);
+        }
+        ArgumentCaptor<Notification> published = ArgumentCaptor.forClass(Notification.class);
+        verify(notificationService, timeout(5000)).publish(published.capture());
+        assertTrue(published.getValue() instanceof VendingmachineOutOfItems);
+        assertEquals(Water.class, ((VendingmachineOutOfItems) published.getValue()).getItemtype());
+
+        // no level change, nothing more to publish
+        stage.stockChanged(machine);
+        Thread.sleep(200);
+        verify(notificationService, times(1)).publish(published.capture());
+        stage.close();
+    }
+
+    @Test
+    public void testRefillsAreSummed() throws Exception {
+        NotificationProviderService notificationService = mock(NotificationProviderService.class);
+        NotificationStage stage = new NotificationStage(notificationService, 5, 50);
+        MachineContext machine = new MachineContext("machine-1", 0, 0, 1);
+
+        // refills set every slot to 2, then to 3: the window added 3 items per product
+        stage.refilled(machine, refill(machine, 2));
+        stage.refilled(machine, refill(machine, 3));
+
+        // one refill and one low stock notification per product
+        ArgumentCaptor<Notification> published = ArgumentCaptor.forClass(Notification.class);
+        verify(notificationService, timeout(5000).times(1 + ProductInventory.PRODUCTS.size()))
+                .publish(published.capture());
+        List<Notification> notifications = published.getAllValues();
+        assertEquals(Long.valueOf(3 * ProductInventory.PRODUCTS.size()),
+                ((Refullvendingmachine) notifications.get(0)).getQuantityofproduct());
+        assertEquals(Long.valueOf(3), ((VendingmachineLowStock) notifications.get(1)).getNumberInStock());
+        stage.close();
+    }
+
+    @Test
+    public void testRefillLoweringStockIsNotNotified() throws Exception {
+        NotificationProviderService notificationService = mock(NotificationProviderService.class);
+        NotificationStage stage = new NotificationStage(notificationService, 0, 50);
+        MachineContext machine = new MachineContext("machine-1", 0, 10, 1);
+
+        stage.refilled(machine, refill(machine, 4));
+        Thread.sleep(200);
+        verify(notificationService, never()).publish(any(Notification.class));
+        stage.close();
+    }
+
+    private static long refill(final MachineContext machine, final long quantity) {
+        long added = 0;
+        for (Class<? extends VendingProducts> product : ProductInventory.PRODUCTS) {
+            added += machine.getInventory().refill(product, quantity);
+        }
+        return added;
+    }
+}
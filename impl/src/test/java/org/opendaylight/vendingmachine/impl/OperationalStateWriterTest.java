@@ -0,0 +1,115 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.api.WriteTransaction;
+import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
+import org.opendaylight.controller.md.sal.common.api.data.TransactionCommitFailedException;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MachineStatus;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Vendingmachine;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Vendingmachine.VendingmachineStatus;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Water;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.fleet.Machine;
+
+import com.google.common.util.concurrent.Futures;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class OperationalStateWriterTest {
+    @Test
+    public void testChangesAreCoalesced() throws Exception {
+        WriteTransaction tx = mock(WriteTransaction.class);
+        when(tx.submit()).thenReturn(Futures.<Void, TransactionCommitFailedException>immediateCheckedFuture(null));
+        DataBroker dataBroker = mock(DataBroker.class);
+        when(dataBroker.newWriteOnlyTransaction()).thenReturn(tx);
+
+        MachineContext defaultMachine = new MachineContext(MachineContext.DEFAULT_MACHINE_ID, 0, 1, 1);
+        MachineContext otherMachine = new MachineContext("machine-2", 0, 0, 1);
+        // a long interval and a large batch, so only the explicit flush writes
+        OperationalStateWriter writer = new OperationalStateWriter(dataBroker, true, 60000, 1000);
+        for (int i = 0; i < 100; i++) {
+            writer.stockChanged(defaultMachine);
+            writer.stockChanged(otherMachine);
+        }
+        defaultMachine.getInventory().reserve(Water.class, 1);
+        writer.flush().get(5, TimeUnit.SECONDS);
+        verify(tx, times(1)).submit();
+
+        ArgumentCaptor<Vendingmachine> written = ArgumentCaptor.forClass(Vendingmachine.class);
+        verify(tx, times(1)).merge(eq(LogicalDatastoreType.OPERATIONAL), eq(VendingmachineProvider.VENDINGMACHINE_IID),
+                written.capture());
+        assertEquals(Long.valueOf(3), written.getValue().getNumberOfProductsLeaft());
+        assertEquals(4, written.getValue().getProductSlot().size());
+        assertEquals(VendingmachineStatus.Availability, written.getValue().getVendingmachineStatus());
+
+        ArgumentCaptor<Machine> fleetEntry = ArgumentCaptor.forClass(Machine.class);
+        verify(tx).merge(eq(LogicalDatastoreType.OPERATIONAL), eq(otherMachine.getIid()), fleetEntry.capture(), eq(true));
+        assertEquals(MachineStatus.Empty, fleetEntry.getValue().getMachineStatus());
+
+        writer.close();
+    }
+
+    @Test
+    public void testContainerWaitsForOrderTransaction() throws Exception {
+        WriteTransaction tx = mock(WriteTransaction.class);
+        when(tx.submit()).thenReturn(Futures.<Void, TransactionCommitFailedException>immediateCheckedFuture(null));
+        DataBroker dataBroker = mock(DataBroker.class);
+        when(dataBroker.newWriteOnlyTransaction()).thenReturn(tx);
+
+        MachineContext defaultMachine = new MachineContext(MachineContext.DEFAULT_MACHINE_ID, 0, 1, 1);
+        OperationalStateWriter writer = new OperationalStateWriter(dataBroker, false, 60000, 1000);
+
+        // a serialized order reads the container meanwhile, only the fleet entry is written
+        writer.orderTransactionOpened();
+        writer.stockChanged(defaultMachine);
+        writer.flush().get(5, TimeUnit.SECONDS);
+        verify(tx).merge(eq(LogicalDatastoreType.OPERATIONAL), eq(defaultMachine.getIid()), any(Machine.class), eq(true));
+        verify(tx, never()).merge(eq(LogicalDatastoreType.OPERATIONAL), eq(VendingmachineProvider.VENDINGMACHINE_IID),
+                any(Vendingmachine.class));
+
+        // the order committed, the container is written without waiting for the next interval
+        defaultMachine.getInventory().reserve(Water.class, 1);
+        writer.orderTransactionClosed();
+        ArgumentCaptor<Vendingmachine> written = ArgumentCaptor.forClass(Vendingmachine.class);
+        verify(tx, timeout(5000)).merge(eq(LogicalDatastoreType.OPERATIONAL), eq(VendingmachineProvider.VENDINGMACHINE_IID),
+                written.capture());
+        assertEquals(Long.valueOf(3), written.getValue().getNumberOfProductsLeaft());
+
+        writer.close();
+    }
+
+    @Test
+    public void testBatchSizeTriggersWrite() throws Exception {
+        WriteTransaction tx = mock(WriteTransaction.class);
+        when(tx.submit()).thenReturn(Futures.<Void, TransactionCommitFailedException>immediateCheckedFuture(null));
+        DataBroker dataBroker = mock(DataBroker.class);
+        when(dataBroker.newWriteOnlyTransaction()).thenReturn(tx);
+
+        MachineContext machine = new MachineContext("machine-1", 0, 0, 1);
+        OperationalStateWriter writer = new OperationalStateWriter(dataBroker, false, 60000, 10);
+        for (int i = 0; i < 10; i++) {
+            writer.stockChanged(machine);
+        }
+
+        verify(tx, timeout(5000)).submit();
+        writer.close();
+    }
+}
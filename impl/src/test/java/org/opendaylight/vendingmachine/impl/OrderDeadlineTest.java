@@ -0,0 +1,35 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OrderDeadlineTest {
+    @Test
+    public void testExpiredOrderIsNotDispensed() {
+        OrderDeadline deadline = new OrderDeadline(System.nanoTime());
+        assertTrue(deadline.hasPassed(System.nanoTime()));
+        assertTrue(deadline.expire());
+        // answered once only
+        assertFalse(deadline.expire());
+        assertFalse(deadline.startDispense());
+    }
+
+    @Test
+    public void testDispensingOrderOutlivesItsDeadline() {
+        OrderDeadline deadline = new OrderDeadline(System.nanoTime());
+        assertTrue(deadline.startDispense());
+
+        assertTrue(deadline.hasPassed(System.nanoTime()));
+        assertFalse(deadline.expire());
+        assertFalse(deadline.startDispense());
+    }
+}
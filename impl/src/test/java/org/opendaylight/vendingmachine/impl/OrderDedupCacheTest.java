@@ -0,0 +1,60 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import org.junit.Test;
+import org.opendaylight.yangtools.yang.common.RpcError.ErrorType;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+import org.opendaylight.yangtools.yang.common.RpcResultBuilder;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OrderDedupCacheTest {
+    @Test
+    public void testSubmittedAgainGetsFirstOutcome() {
+        OrderDedupCache cache = new OrderDedupCache(100, 60000);
+        SettableFuture<RpcResult<Void>> first = SettableFuture.create();
+        assertNull(cache.register("m1", "order-1", first));
+
+        // in flight, then made
+        assertSame(first, cache.register("m1", "order-1", SettableFuture.<RpcResult<Void>>create()));
+        first.set(RpcResultBuilder.<Void>success().build());
+        assertSame(first, cache.register("m1", "order-1", SettableFuture.<RpcResult<Void>>create()));
+        assertEquals(2, cache.getDuplicates());
+
+        // the same id on another machine is another order
+        assertNull(cache.register("m2", "order-1", SettableFuture.<RpcResult<Void>>create()));
+    }
+
+    @Test
+    public void testTurnedDownOrderIsForgotten() {
+        OrderDedupCache cache = new OrderDedupCache(100, 60000);
+        SettableFuture<RpcResult<Void>> first = SettableFuture.create();
+        assertNull(cache.register("m1", "order-1", first));
+        first.set(RpcResultBuilder.<Void>failed().withError(ErrorType.APPLICATION, "out-of-stock").build());
+
+        assertNull(cache.register("m1", "order-1", SettableFuture.<RpcResult<Void>>create()));
+        assertEquals(0, cache.getDuplicates());
+    }
+
+    @Test
+    public void testBoundedSize() {
+        OrderDedupCache cache = new OrderDedupCache(10, 60000);
+        for (int i = 0; i < 1000; i++) {
+            SettableFuture<RpcResult<Void>> outcome = SettableFuture.create();
+            outcome.set(RpcResultBuilder.<Void>success().build());
+            cache.register("m1", "order-" + i, outcome);
+        }
+        assertTrue("remembers " + cache.size() + " orders", cache.size() <= 10);
+    }
+}
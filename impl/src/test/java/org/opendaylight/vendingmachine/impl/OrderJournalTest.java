@@ -0,0 +1,98 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Juice;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Water;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OrderJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecoversAcrossCompactions() throws Exception {
+        File directory = folder.newFolder("journal");
+        // small enough to be compacted several times
+        OrderJournal journal = new OrderJournal(directory, 4096, 10);
+        List<ListenableFuture<Void>> durable = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            durable.add(journal.orderMade("machine-" + i % 2, Water.class, 1));
+        }
+        durable.add(journal.refilled("machine-1", Juice.class, 5));
+        durable.add(journal.orderCancelled("machine-0", Water.class, 1));
+        Futures.allAsList(durable).get(10, TimeUnit.SECONDS);
+        journal.close();
+        assertTrue(new File(directory, OrderJournal.SNAPSHOT_FILE).exists());
+
+        OrderJournal recovered = new OrderJournal(directory, 4096, 10);
+        OrderJournal.MachineState machine0 = recovered.getState().get("machine-0");
+        assertEquals(499, machine0.getOrdersMade());
+        assertEquals(10 - 499, machine0.getInStock(Water.class));
+        OrderJournal.MachineState machine1 = recovered.getState().get("machine-1");
+        assertEquals(500, machine1.getOrdersMade());
+        assertEquals(15, machine1.getInStock(Juice.class));
+        recovered.close();
+    }
+
+    @Test
+    public void testConcurrentAppendsOutrunningCompaction() throws Exception {
+        File directory = folder.newFolder("journal");
+        // each half fills faster than its snapshot is written, appends wait for it
+        final OrderJournal journal = new OrderJournal(directory, 4096, 0);
+        final List<ListenableFuture<Void>> durable = Collections.synchronizedList(
+                new ArrayList<ListenableFuture<Void>>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final String machineId = "machine-" + i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 2000; j++) {
+                        durable.add(journal.refilled(machineId, Water.class, 1));
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Futures.allAsList(durable).get(10, TimeUnit.SECONDS);
+        journal.close();
+
+        OrderJournal recovered = new OrderJournal(directory, 4096, 0);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(2000, recovered.getState().get("machine-" + i).getInStock(Water.class));
+        }
+        recovered.close();
+    }
+
+    @Test
+    public void testEmptyJournal() throws Exception {
+        OrderJournal journal = new OrderJournal(folder.newFolder("journal"), 4096, 10);
+        assertTrue(journal.getState().isEmpty());
+        journal.sync().get(5, TimeUnit.SECONDS);
+        journal.close();
+    }
+}
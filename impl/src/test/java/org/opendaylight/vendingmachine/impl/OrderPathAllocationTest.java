@@ -0,0 +1,191 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.api.DataChangeListener;
+import org.opendaylight.controller.md.sal.binding.api.ReadOnlyTransaction;
+import org.opendaylight.controller.md.sal.binding.api.WriteTransaction;
+import org.opendaylight.controller.md.sal.common.api.data.AsyncDataBroker.DataChangeScope;
+import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
+import org.opendaylight.controller.md.sal.common.api.data.TransactionCommitFailedException;
+import org.opendaylight.controller.sal.binding.api.BindingAwareBroker;
+import org.opendaylight.controller.sal.binding.api.NotificationProviderService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.RefullItemInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Vendingmachine;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingmachineBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingmachineService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Water;
+import org.opendaylight.yangtools.concepts.ListenerRegistration;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.Futures;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Bytes allocated per order on the steady-state order path, over all threads.
+ * The datastore is a stub; in serialized mode the cost of its calls is measured
+ * on its own and left out.
+ */
+public class OrderPathAllocationTest {
+
+    private static final int WARMUP_ORDERS = 20000;
+    private static final int MEASURED_ORDERS = 20000;
+
+    /**
+     * Generous on purpose: an order still allocates its RPC future, its order
+     * task and the listeners of the futures it waits for. A DataObject, an
+     * error or a formatted log message per order costs more than the budget.
+     */
+    private static final long BUDGET_PER_ORDER = 2048;
+
+    private com.sun.management.ThreadMXBean threads;
+    private DataBroker dataBroker;
+    private VendingmachineProvider provider;
+
+    @Before
+    public void setUp() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (provider != null) {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentOrderAllocation() throws Exception {
+        startProvider(true);
+        assertWithinBudget(bytesPerOrder(), 0);
+    }
+
+    @Test
+    public void testSerializedOrderAllocation() throws Exception {
+        startProvider(false);
+        assertWithinBudget(bytesPerOrder(), datastoreBytesPerOrder());
+    }
+
+    private void startProvider(final boolean concurrentOrders) throws Exception {
+        provider = new VendingmachineProvider();
+        provider.setConcurrentOrders(concurrentOrders);
+        // keep the background writers quiet, they are not part of an order
+        provider.setOperationalWriteInterval(60000);
+        provider.setOperationalWriteBatchSize(Integer.MAX_VALUE);
+        provider.setNotificationWindow(60000);
+        for (Class<? extends VendingProducts> product : ProductInventory.PRODUCTS) {
+            provider.setDispenseTime(product, 0);
+        }
+        provider.onSessionInitiated(stubSession());
+        assertTrue(provider.refullItem(new RefullItemInputBuilder().setQuantityofproductprovide(4294967295L).build())
+                .get(5, TimeUnit.SECONDS).isSuccessful());
+    }
+
+    private long bytesPerOrder() throws Exception {
+        final MakeOrderInput water = new MakeOrderInputBuilder().setItemtype(Water.class).setNumberofitems(1L).build();
+        for (int i = 0; i < WARMUP_ORDERS; i++) {
+            provider.makeOrder(water).get(5, TimeUnit.SECONDS);
+        }
+
+        final long before = allocatedBytes();
+        for (int i = 0; i < MEASURED_ORDERS; i++) {
+            assertTrue(provider.makeOrder(water).get(5, TimeUnit.SECONDS).isSuccessful());
+        }
+        return (allocatedBytes() - before) / MEASURED_ORDERS;
+    }
+
+    /**
+     * Allocation of the stubbed datastore calls a serialized order makes: two
+     * write transactions, each merging the status and submitted.
+     */
+    private long datastoreBytesPerOrder() {
+        final Vendingmachine status = new VendingmachineBuilder().build();
+        writeStatus(status, WARMUP_ORDERS);
+
+        final long before = allocatedBytes();
+        writeStatus(status, MEASURED_ORDERS);
+        return (allocatedBytes() - before) / MEASURED_ORDERS;
+    }
+
+    private void writeStatus(final Vendingmachine status, final int orders) {
+        for (int i = 0; i < 2 * orders; i++) {
+            final WriteTransaction writeTx = dataBroker.newWriteOnlyTransaction();
+            writeTx.merge(LogicalDatastoreType.OPERATIONAL, VendingmachineProvider.VENDINGMACHINE_IID, status);
+            writeTx.submit();
+        }
+    }
+
+    private static void assertWithinBudget(final long bytesPerOrder, final long datastoreBytesPerOrder) {
+        final long providerBytes = bytesPerOrder - datastoreBytesPerOrder;
+        assertTrue("An order allocates " + providerBytes + " bytes, more than the budget of " + BUDGET_PER_ORDER,
+                providerBytes <= BUDGET_PER_ORDER);
+    }
+
+    private long allocatedBytes() {
+        long allocated = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            // -1 for threads that ended in between
+            if (bytes > 0) {
+                allocated += bytes;
+            }
+        }
+        return allocated;
+    }
+
+    /**
+     * Like the session of {@link VendingmachineProviderTest}, but the mocks do
+     * not record their invocations, which would be allocation of their own.
+     */
+    @SuppressWarnings("unchecked")
+    private BindingAwareBroker.ProviderContext stubSession() {
+        final WriteTransaction tx = mock(WriteTransaction.class, withSettings().stubOnly());
+        when(tx.submit()).thenReturn(Futures.<Void, TransactionCommitFailedException>immediateCheckedFuture(null));
+
+        final ReadOnlyTransaction readTx = mock(ReadOnlyTransaction.class, withSettings().stubOnly());
+        when(readTx.read(any(LogicalDatastoreType.class), any(InstanceIdentifier.class)))
+                .thenReturn(Futures.immediateCheckedFuture(Optional.absent()));
+
+        dataBroker = mock(DataBroker.class, withSettings().stubOnly());
+        when(dataBroker.newWriteOnlyTransaction()).thenReturn(tx);
+        when(dataBroker.newReadOnlyTransaction()).thenReturn(readTx);
+        when(dataBroker.registerDataChangeListener(any(LogicalDatastoreType.class), any(InstanceIdentifier.class),
+                any(DataChangeListener.class), any(DataChangeScope.class)))
+                .thenReturn(mock(ListenerRegistration.class, withSettings().stubOnly()));
+
+        final BindingAwareBroker.ProviderContext session =
+                mock(BindingAwareBroker.ProviderContext.class, withSettings().stubOnly());
+        when(session.getSALService(DataBroker.class)).thenReturn(dataBroker);
+        when(session.getSALService(NotificationProviderService.class))
+                .thenReturn(mock(NotificationProviderService.class, withSettings().stubOnly()));
+        when(session.addRpcImplementation(eq(VendingmachineService.class), any(VendingmachineService.class)))
+                .thenReturn(mock(BindingAwareBroker.RpcRegistration.class, withSettings().stubOnly()));
+        return session;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInputBuilder;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OrderQueueTest {
+    @Test
+    public void testBoundedFirstComeFirstServed() {
+        OrderQueue queue = new OrderQueue();
+        MakeOrderInput input = new MakeOrderInputBuilder().build();
+        SettableFuture<RpcResult<Void>> first = SettableFuture.create();
+        SettableFuture<RpcResult<Void>> second = SettableFuture.create();
+
+        // disabled until given a capacity
+        assertFalse(queue.offer(input, first, 0));
+        queue.setCapacity(2);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        assertTrue(queue.offer(input, first, deadline));
+        assertTrue(queue.offer(input, second, deadline));
+        assertFalse(queue.offer(input, SettableFuture.<RpcResult<Void>>create(), deadline));
+
+        assertSame(first, queue.poll().getFutureResult());
+        assertSame(second, queue.poll().getFutureResult());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testEarliestOwnDeadlineFirst() {
+        OrderQueue queue = new OrderQueue();
+        queue.setCapacity(10);
+        MakeOrderInput input = new MakeOrderInputBuilder().build();
+        SettableFuture<RpcResult<Void>> patient = SettableFuture.create();
+        SettableFuture<RpcResult<Void>> urgent = SettableFuture.create();
+        long queueDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        OrderDeadline soon = new OrderDeadline(queueDeadline - TimeUnit.MILLISECONDS.toNanos(500));
+
+        assertTrue(queue.offer(input, patient, queueDeadline));
+        assertTrue(queue.offer(input, urgent, queueDeadline, soon));
+
+        OrderQueue.Entry first = queue.poll();
+        assertSame(urgent, first.getFutureResult());
+        assertSame(soon, first.getOrderDeadline());
+        assertEquals(soon.getDeadlineNanos(), first.getDeadlineNanos());
+        assertSame(patient, queue.poll().getFutureResult());
+    }
+
+    @Test
+    public void testExpiredOrdersAreRemoved() {
+        OrderQueue queue = new OrderQueue();
+        queue.setCapacity(10);
+        MakeOrderInput input = new MakeOrderInputBuilder().build();
+        long now = System.nanoTime();
+        queue.offer(input, SettableFuture.<RpcResult<Void>>create(), now + TimeUnit.SECONDS.toNanos(10));
+        queue.offer(input, SettableFuture.<RpcResult<Void>>create(), now - 1);
+
+        assertEquals(1, queue.removeExpired(now).size());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testRetryAfterGrowsWithDepth() {
+        OrderQueue queue = new OrderQueue();
+        queue.setCapacity(10);
+        queue.recordService(TimeUnit.MILLISECONDS.toNanos(10));
+        assertEquals(10, queue.getRetryAfterMillis(1));
+
+        MakeOrderInput input = new MakeOrderInputBuilder().build();
+        for (int i = 0; i < 4; i++) {
+            queue.offer(input, SettableFuture.<RpcResult<Void>>create(), Long.MAX_VALUE);
+        }
+        assertEquals(50, queue.getRetryAfterMillis(1));
+        assertEquals(25, queue.getRetryAfterMillis(2));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Juice;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Sandwich;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Water;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProductInventoryTest {
+    @Test
+    public void testReserveIsAllOrNothing() {
+        ProductInventory inventory = new ProductInventory(5);
+
+        assertTrue(inventory.reserve(Water.class, 3));
+        assertFalse(inventory.reserve(Water.class, 3));
+        assertEquals(2, inventory.getInStock(Water.class));
+
+        // other slots are not affected
+        assertEquals(5, inventory.getInStock(Sandwich.class));
+        assertEquals(17, inventory.getTotalInStock());
+    }
+
+    @Test
+    public void testReleaseAndRefill() {
+        ProductInventory inventory = new ProductInventory(2);
+
+        assertTrue(inventory.reserve(Juice.class, 2));
+        assertEquals(0, inventory.getInStock(Juice.class));
+        inventory.release(Juice.class, 2);
+        assertEquals(2, inventory.getInStock(Juice.class));
+
+        inventory.refillAll(0);
+        assertTrue(inventory.isEmpty());
+        inventory.refill(Juice.class, 7);
+        assertEquals(7, inventory.getTotalInStock());
+    }
+
+    @Test
+    public void testConcurrentReservationsNeverOversell() throws Exception {
+        final ProductInventory inventory = new ProductInventory(10000);
+        final AtomicLong sold = new AtomicLong();
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (inventory.reserve(Water.class, 3)) {
+                        sold.addAndGet(3);
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(9999, sold.get());
+        assertEquals(1, inventory.getInStock(Water.class));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.opendaylight.vendingmachine.impl.SalesAnalytics.Window;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Juice;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Water;
+
+import static org.junit.Assert.assertEquals;
+
+public class SalesAnalyticsTest {
+
+    private static final long START = 1000;
+
+    @Test
+    public void testWindowsRollOver() {
+        SalesAnalytics analytics = new SalesAnalytics(START);
+        analytics.orderMade(Water.class, 2, at(TimeUnit.SECONDS, 1));
+        analytics.orderMade(Water.class, 1, at(TimeUnit.SECONDS, 30));
+
+        SalesAnalytics.Sales minute = analytics.getSales(Water.class, Window.LAST_MINUTE, at(TimeUnit.SECONDS, 59));
+        assertEquals(2, minute.getOrders());
+        assertEquals(3, minute.getItems());
+        assertEquals(0, analytics.getSales(Juice.class, Window.LAST_MINUTE, at(TimeUnit.SECONDS, 59)).getOrders());
+
+        // the first order left the minute, both are still in the hour and the day
+        assertEquals(1, analytics.getSales(Water.class, Window.LAST_MINUTE, at(TimeUnit.SECONDS, 61)).getOrders());
+        assertEquals(0, analytics.getSales(Water.class, Window.LAST_MINUTE, at(TimeUnit.SECONDS, 120)).getOrders());
+        assertEquals(2, analytics.getSales(Water.class, Window.LAST_HOUR, at(TimeUnit.MINUTES, 59)).getOrders());
+        assertEquals(0, analytics.getSales(Water.class, Window.LAST_HOUR, at(TimeUnit.MINUTES, 61)).getOrders());
+        assertEquals(3, analytics.getSales(Water.class, Window.LAST_DAY, at(TimeUnit.HOURS, 23)).getItems());
+        assertEquals(0, analytics.getSales(Water.class, Window.LAST_DAY, at(TimeUnit.HOURS, 25)).getItems());
+    }
+
+    @Test
+    public void testReusedBucketIsReset() {
+        SalesAnalytics analytics = new SalesAnalytics(START);
+        analytics.orderMade(Juice.class, 3, at(TimeUnit.SECONDS, 5));
+        // same bucket of the minute ring, one lap later
+        analytics.orderMade(Juice.class, 1, at(TimeUnit.SECONDS, 65));
+
+        SalesAnalytics.Sales minute = analytics.getSales(Juice.class, Window.LAST_MINUTE, at(TimeUnit.SECONDS, 65));
+        assertEquals(1, minute.getOrders());
+        assertEquals(1, minute.getItems());
+        assertEquals(4, analytics.getSales(Juice.class, Window.LAST_HOUR, at(TimeUnit.SECONDS, 65)).getItems());
+    }
+
+    @Test
+    public void testRateCoversTimeSinceStart() {
+        SalesAnalytics analytics = new SalesAnalytics(START);
+        for (int i = 0; i < 10; i++) {
+            analytics.orderMade(Water.class, 1, at(TimeUnit.SECONDS, i));
+        }
+
+        // ten items in the first half minute is 20 a minute, not 10
+        assertEquals(20.0, analytics.getSales(Water.class, Window.LAST_MINUTE, at(TimeUnit.SECONDS, 30))
+                .getItemsPerMinute(), 0.01);
+        assertEquals(20.0, analytics.getSales(Water.class, Window.LAST_DAY, at(TimeUnit.SECONDS, 30))
+                .getItemsPerMinute(), 0.01);
+        // once the hour is covered the rate is over the whole hour
+        assertEquals(10 / 60.0, analytics.getSales(Water.class, Window.LAST_HOUR, at(TimeUnit.MINUTES, 60) - 1)
+                .getItemsPerMinute(), 0.01);
+    }
+
+    @Test
+    public void testConcurrentOrdersAreAllCounted() throws Exception {
+        final SalesAnalytics analytics = new SalesAnalytics(START);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // the orders move into the next second half way, racing on the reset of its bucket
+                    for (int i = 0; i < 20000; i++) {
+                        analytics.orderMade(Water.class, 2, at(TimeUnit.SECONDS, 60 + i / 10000));
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        SalesAnalytics.Sales hour = analytics.getSales(Water.class, Window.LAST_HOUR, at(TimeUnit.SECONDS, 61));
+        assertEquals(80000, hour.getOrders());
+        assertEquals(160000, hour.getItems());
+        assertEquals(80000, analytics.getSales(Water.class, Window.LAST_MINUTE, at(TimeUnit.SECONDS, 61)).getOrders());
+    }
+
+    private static long at(final TimeUnit unit, final long duration) {
+        return START + unit.toNanos(duration);
+    }
+}
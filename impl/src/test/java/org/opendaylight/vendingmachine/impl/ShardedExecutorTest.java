@@ -0,0 +1,72 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedExecutorTest {
+    @Test
+    public void testKeyIsPinnedToOneShard() {
+        ShardedExecutor shards = new ShardedExecutor(4);
+        assertEquals(4, shards.getShardCount());
+        assertEquals(shards.shardOf("machine-7"), shards.shardOf("machine-7"));
+        shards.close();
+    }
+
+    @Test
+    public void testShardRunsInSubmissionOrder() throws Exception {
+        ShardedExecutor shards = new ShardedExecutor(2);
+        final List<Integer> executed = Collections.synchronizedList(new ArrayList<Integer>());
+        for (int i = 0; i < 100; i++) {
+            final int value = i;
+            shards.execute(1, new Runnable() {
+                @Override
+                public void run() {
+                    executed.add(value);
+                }
+            });
+        }
+
+        // a blocked shard does not hold back the other one
+        final CountDownLatch blocker = new CountDownLatch(1);
+        shards.execute(0, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final CountDownLatch ran = new CountDownLatch(1);
+        shards.execute(1, new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        blocker.countDown();
+
+        shards.close();
+        assertTrue(shards.awaitTermination(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), executed.get(i));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import org.junit.Test;
+import org.opendaylight.controller.md.sal.common.api.data.AsyncDataChangeEvent;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Vendingmachine;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Vendingmachine.VendingmachineStatus;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingmachineBuilder;
+import org.opendaylight.yangtools.yang.binding.DataObject;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class StatusCacheTest {
+    @Test
+    public void testOwnWritesKeepTheCache() {
+        StatusCache cache = new StatusCache();
+        assertNull(cache.get());
+        cache.writing(VendingmachineStatus.Availability);
+        cache.committed(VendingmachineStatus.Availability);
+        cache.onDataChanged(change(null, VendingmachineStatus.Availability));
+
+        assertTrue(cache.tryAcquire());
+        assertFalse(cache.tryAcquire());
+        cache.writing(VendingmachineStatus.Empty);
+        cache.onDataChanged(change(VendingmachineStatus.Availability, VendingmachineStatus.Empty));
+        // a stock update leaves the status alone
+        cache.onDataChanged(change(VendingmachineStatus.Empty, VendingmachineStatus.Empty));
+        assertEquals(VendingmachineStatus.Empty, cache.get());
+
+        cache.release();
+        assertEquals(VendingmachineStatus.Availability, cache.get());
+    }
+
+    @Test
+    public void testForeignWriteInvalidates() {
+        StatusCache cache = new StatusCache();
+        cache.committed(VendingmachineStatus.Availability);
+
+        cache.onDataChanged(change(VendingmachineStatus.Availability, VendingmachineStatus.Empty));
+        assertNull(cache.get());
+        assertFalse(cache.tryAcquire());
+
+        // the next status the provider commits makes the cache valid again
+        cache.committed(VendingmachineStatus.Empty);
+        assertEquals(VendingmachineStatus.Empty, cache.get());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AsyncDataChangeEvent<InstanceIdentifier<?>, DataObject> change(final VendingmachineStatus before,
+            final VendingmachineStatus after) {
+        AsyncDataChangeEvent<InstanceIdentifier<?>, DataObject> change = mock(AsyncDataChangeEvent.class);
+        when(change.getOriginalSubtree()).thenReturn(vendingmachine(before));
+        when(change.getUpdatedSubtree()).thenReturn(vendingmachine(after));
+        return change;
+    }
+
+    private static Vendingmachine vendingmachine(final VendingmachineStatus status) {
+        return status == null ? null : new VendingmachineBuilder().setVendingmachineStatus(status).build();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright(c) Inocybe. Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.vendingmachine.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Juice;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Water;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import static org.junit.Assert.assertTrue;
+
+public class TimedDispenseSchedulerTest {
+    @Test
+    public void testSlotsDispenseInParallel() throws Exception {
+        TimedDispenseScheduler scheduler = new TimedDispenseScheduler(
+                ImmutableMap.<Class<? extends VendingProducts>, Long>of(Water.class, 50L), 1);
+        List<MachineContext> machines = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            machines.add(new MachineContext("machine-" + i, 0, 10, 1));
+        }
+
+        // 500 slots of 50ms each on one timer thread: all done in about 50ms
+        long start = System.nanoTime();
+        List<ListenableFuture<Void>> dispensed = new ArrayList<>();
+        for (MachineContext machine : machines) {
+            dispensed.add(scheduler.dispense(machine, Water.class, 1));
+        }
+        Futures.allAsList(dispensed).get(5, TimeUnit.SECONDS);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        scheduler.close();
+    }
+
+    @Test
+    public void testSlotDispensesOneOrderAtATime() throws Exception {
+        TimedDispenseScheduler scheduler = new TimedDispenseScheduler(
+                ImmutableMap.<Class<? extends VendingProducts>, Long>of(Water.class, 20L), 20);
+        MachineContext machine = new MachineContext("machine-1", 0, 10, 1);
+
+        long start = System.nanoTime();
+        ListenableFuture<Void> first = scheduler.dispense(machine, Water.class, 2);
+        ListenableFuture<Void> second = scheduler.dispense(machine, Water.class, 1);
+        ListenableFuture<Void> otherSlot = scheduler.dispense(machine, Juice.class, 1);
+        otherSlot.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        assertTrue(first.isDone());
+        // the second order waited for the two items of the first one
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(60));
+        scheduler.close();
+    }
+}
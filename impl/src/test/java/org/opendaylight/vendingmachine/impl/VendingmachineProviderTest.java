@@ -7,13 +7,84 @@
  */
 package org.opendaylight.vendingmachine.impl;
 
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.api.DataChangeListener;
+import org.opendaylight.controller.md.sal.binding.api.ReadOnlyTransaction;
+import org.opendaylight.controller.md.sal.binding.api.WriteTransaction;
+import org.opendaylight.controller.md.sal.common.api.data.AsyncDataBroker.DataChangeScope;
+import org.opendaylight.controller.md.sal.common.api.data.AsyncDataChangeEvent;
+import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
+import org.opendaylight.controller.md.sal.common.api.data.ReadFailedException;
+import org.opendaylight.controller.md.sal.common.api.data.TransactionCommitFailedException;
 import org.opendaylight.controller.sal.binding.api.BindingAwareBroker;
+import org.opendaylight.controller.sal.binding.api.NotificationProviderService;
 import org.opendaylight.vendingmachine.impl.VendingmachineProvider;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.ExportInventoryInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.ExportInventoryOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.GetSalesStatisticsOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.ImportInventoryInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.ImportInventoryOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.InventoryFormat;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Juice;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MachineId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrderInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrdersInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.MakeOrdersOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.RefullItemInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.RefullItemInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Sandwich;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Vendingmachine;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingmachineBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingmachineService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.VendingProducts;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.Water;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.get.sales.statistics.output.ProductSales;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.make.orders.input.Order;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.make.orders.input.OrderBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.make.orders.output.OrderResult;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.vendingmachine.rev141210.vendingmachine.ProductCapacityBuilder;
+import org.opendaylight.yangtools.concepts.ListenerRegistration;
+import org.opendaylight.yangtools.yang.binding.DataObject;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.opendaylight.yangtools.yang.common.RpcError;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class VendingmachineProviderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testOnSessionInitiated() {
         VendingmachineProvider provider = new VendingmachineProvider();
@@ -31,4 +102,442 @@ public class VendingmachineProviderTest {
         // currently this method is empty
         provider.close();
     }
+
+    @Test
+    public void testConcurrentOrders() throws Exception {
+        VendingmachineProvider provider = new VendingmachineProvider();
+        provider.setConcurrentOrders(true);
+        provider.onSessionInitiated(mockSession());
+
+        // 10 sandwiches in stock, at most 3 per order
+        MakeOrderInput threeSandwiches = new MakeOrderInputBuilder().setItemtype(Sandwich.class).setNumberofitems(3L).build();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(provider.makeOrder(threeSandwiches).get(5, TimeUnit.SECONDS).isSuccessful());
+        }
+        assertFalse(provider.makeOrder(threeSandwiches).get(5, TimeUnit.SECONDS).isSuccessful());
+
+        // other products are not affected
+        MakeOrderInput water = new MakeOrderInputBuilder().setItemtype(Water.class).setNumberofitems(1L).build();
+        RpcResult<Void> result = provider.makeOrder(water).get(5, TimeUnit.SECONDS);
+        assertTrue(result.isSuccessful());
+
+        MakeOrderInput tooMany = new MakeOrderInputBuilder().setItemtype(Water.class).setNumberofitems(4L).build();
+        assertFalse(provider.makeOrder(tooMany).get(5, TimeUnit.SECONDS).isSuccessful());
+
+        provider.close();
+    }
+
+    @Test
+    public void testMakeOrders() throws Exception {
+        VendingmachineProvider provider = new VendingmachineProvider();
+        provider.onSessionInitiated(mockSession());
+
+        List<Order> orders = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            orders.add(new OrderBuilder().setClientOrderId("order-" + i).setItemtype(Juice.class).setNumberofitems(3L).build());
+        }
+        orders.add(new OrderBuilder().setItemtype(Juice.class).setNumberofitems(5L).build());
+
+        RpcResult<MakeOrdersOutput> result = provider.makeOrders(new MakeOrdersInputBuilder().setOrder(orders).build())
+                .get(5, TimeUnit.SECONDS);
+        assertTrue(result.isSuccessful());
+
+        // 10 juices in stock: three orders of 3 succeed, the fourth is out of stock, the last is too large
+        List<OrderResult> results = result.getResult().getOrderResult();
+        assertEquals(5, results.size());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(results.get(i).isSuccess());
+            assertEquals("order-" + i, results.get(i).getClientOrderId());
+        }
+        assertFalse(results.get(3).isSuccess());
+        assertEquals("out-of-stock", results.get(3).getErrorTag());
+        assertFalse(results.get(4).isSuccess());
+        assertEquals(Long.valueOf(4), results.get(4).getSequence());
+
+        provider.close();
+    }
+
+    @Test
+    public void testBatchIsPutBackWhenNotJournaled() throws Exception {
+        VendingmachineProvider provider = new VendingmachineProvider();
+        provider.setJournalDirectory(folder.newFolder().getPath());
+        // a journal without room turns down every record
+        provider.setJournalSize(0);
+        provider.onSessionInitiated(mockSession());
+
+        List<Order> orders = new ArrayList<>();
+        orders.add(new OrderBuilder().setClientOrderId("order-1").setItemtype(Water.class).setNumberofitems(3L).build());
+        orders.add(new OrderBuilder().setItemtype(Water.class).setNumberofitems(3L).build());
+        RpcResult<MakeOrdersOutput> result = provider.makeOrders(new MakeOrdersInputBuilder().setOrder(orders).build())
+                .get(5, TimeUnit.SECONDS);
+        assertFalse(result.isSuccessful());
+        assertEquals("operation-failed", result.getErrors().iterator().next().getTag());
+        assertEquals(Long.valueOf(0), provider.getOrdersMade());
+
+        // the 10 waters are all back in stock
+        File exported = new File(folder.getRoot(), "exported");
+        assertTrue(provider.exportInventory(new ExportInventoryInputBuilder().setFilePath(exported.getPath()).build())
+                .get(5, TimeUnit.SECONDS).isSuccessful());
+        final List<String> slots = new ArrayList<>();
+        InventoryFile.read(exported, InventoryFormat.Csv, new InventoryFile.SlotHandler() {
+            @Override
+            public void slot(final String machineId, final Class<? extends VendingProducts> product, final long stock) {
+                if (product == Water.class) {
+                    slots.add(machineId + "=" + stock);
+                }
+            }
+        });
+        assertEquals(Collections.singletonList(MachineContext.DEFAULT_MACHINE_ID + "=10"), slots);
+
+        // the failed order is forgotten, submitting it again makes it again
+        List<Order> again = Collections.singletonList(orders.get(0));
+        assertFalse(provider.makeOrders(new MakeOrdersInputBuilder().setOrder(again).build())
+                .get(5, TimeUnit.SECONDS).isSuccessful());
+        assertEquals(Long.valueOf(0), provider.getDuplicateOrders());
+
+        provider.close();
+    }
+
+    @Test
+    public void testFleetMachines() throws Exception {
+        VendingmachineProvider provider = new VendingmachineProvider();
+        provider.setConcurrentOrders(true);
+        provider.setOrderShards(2);
+        provider.onSessionInitiated(mockSession());
+
+        MachineId machineId = new MachineId("machine-2");
+        MakeOrderInput order = new MakeOrderInputBuilder().setMachineId(machineId).setItemtype(Water.class)
+                .setNumberofitems(1L).build();
+        assertFalse(provider.makeOrder(order).get(5, TimeUnit.SECONDS).isSuccessful());
+
+        // refilling a machine adds it to the fleet
+        RefullItemInput refill = new RefullItemInputBuilder().setMachineId(machineId).setQuantityofproductprovide(1L).build();
+        assertTrue(provider.refullItem(refill).get(5, TimeUnit.SECONDS).isSuccessful());
+        assertTrue(provider.makeOrder(order).get(5, TimeUnit.SECONDS).isSuccessful());
+        assertFalse(provider.makeOrder(order).get(5, TimeUnit.SECONDS).isSuccessful());
+
+        // the default machine keeps its own stock
+        MakeOrderInput defaultOrder = new MakeOrderInputBuilder().setItemtype(Water.class).setNumberofitems(1L).build();
+        assertTrue(provider.makeOrder(defaultOrder).get(5, TimeUnit.SECONDS).isSuccessful());
+        assertEquals(Long.valueOf(2), provider.getOrdersMade());
+
+        provider.close();
+    }
+
+    @Test
+    public void testSerializedOrdersUseStatusCache() throws Exception {
+        VendingmachineProvider provider = new VendingmachineProvider();
+        BindingAwareBroker.ProviderContext session = mockSession();
+        provider.onSessionInitiated(session);
+
+        // the status written at startup is cached, the order does not read it back
+        MakeOrderInput water = new MakeOrderInputBuilder().setItemtype(Water.class).setNumberofitems(1L).build();
+        assertTrue(provider.makeOrder(water).get(5, TimeUnit.SECONDS).isSuccessful());
+        assertTrue(provider.makeOrder(water).get(5, TimeUnit.SECONDS).isSuccessful());
+        verify(session.getSALService(DataBroker.class), never()).newReadWriteTransaction();
+
+        provider.close();
+    }
+
+    @Test
+    public void testBusyMachineQueuesOrders() throws Exception {
+        VendingmachineProvider provider = new VendingmachineProvider();
+        provider.setConcurrentOrders(true);
+        provider.setMaxOrdersInFlight(1);
+        provider.setOrderQueueCapacity(1);
+        provider.onSessionInitiated(mockSession());
+
+        MakeOrderInput water = new MakeOrderInputBuilder().setItemtype(Water.class).setNumberofitems(1L).build();
+        Future<RpcResult<Void>> inFlight = provider.makeOrder(water);
+        Future<RpcResult<Void>> queued = provider.makeOrder(water);
+        RpcResult<Void> overloaded = provider.makeOrder(water).get(5, TimeUnit.SECONDS);
+
+        assertFalse(overloaded.isSuccessful());
+        RpcError error = overloaded.getErrors().iterator().next();
+        assertEquals("resource-denied", error.getTag());
+        assertTrue(error.getInfo().startsWith("queue-depth=1;retry-after-ms="));
+        assertTrue(inFlight.get(5, TimeUnit.SECONDS).isSuccessful());
+        assertTrue(queued.get(5, TimeUnit.SECONDS).isSuccessful());
+
+        provider.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testConfigurationIsAppliedLive() throws Exception {
+        VendingmachineProvider provider = new VendingmachineProvider();
+        provider.setConcurrentOrders(true);
+        provider.onSessionInitiated(mockSession());
+
+        Vendingmachine config = new VendingmachineBuilder()
+                .setMaxOrderItems(1L)
+                .setProductCapacity(Collections.singletonList(
+                        new ProductCapacityBuilder().setProduct(Water.class).setCapacity(2L).build()))
+                .build();
+        AsyncDataChangeEvent<InstanceIdentifier<?>, DataObject> change = mock(AsyncDataChangeEvent.class);
+        when(change.getUpdatedSubtree()).thenReturn(config);
+        provider.onDataChanged(change);
+
+        MakeOrderInput twoWaters = new MakeOrderInputBuilder().setItemtype(Water.class).setNumberofitems(2L).build();
+        assertFalse(provider.makeOrder(twoWaters).get(5, TimeUnit.SECONDS).isSuccessful());
+
+        // the refill stops at the capacity of the slot
+        RefullItemInput refill = new RefullItemInputBuilder().setQuantityofproductprovide(10L).build();
+        assertTrue(provider.refullItem(refill).get(5, TimeUnit.SECONDS).isSuccessful());
+        MakeOrderInput water = new MakeOrderInputBuilder().setItemtype(Water.class).setNumberofitems(1L).build();
+        assertTrue(provider.makeOrder(water).get(5, TimeUnit.SECONDS).isSuccessful());
+        assertTrue(provider.makeOrder(water).get(5, TimeUnit.SECONDS).isSuccessful());
+        assertFalse(provider.makeOrder(water).get(5, TimeUnit.SECONDS).isSuccessful());
+
+        provider.close();
+    }
+
+    @Test
+    public void testGetSalesStatistics() throws Exception {
+        VendingmachineProvider provider = new VendingmachineProvider();
+        provider.setConcurrentOrders(true);
+        provider.onSessionInitiated(mockSession());
+
+        MakeOrderInput twoWaters = new MakeOrderInputBuilder().setItemtype(Water.class).setNumberofitems(2L).build();
+        assertTrue(provider.makeOrder(twoWaters).get(5, TimeUnit.SECONDS).isSuccessful());
+        assertTrue(provider.makeOrder(twoWaters).get(5, TimeUnit.SECONDS).isSuccessful());
+
+        RpcResult<GetSalesStatisticsOutput> result = provider.getSalesStatistics().get(5, TimeUnit.SECONDS);
+        assertTrue(result.isSuccessful());
+        assertEquals(4, result.getResult().getProductSales().size());
+        for (ProductSales sales : result.getResult().getProductSales()) {
+            long expected = sales.getProduct() == Water.class ? 4 : 0;
+            assertEquals(BigInteger.valueOf(expected), sales.getLastMinute().getItems());
+            assertEquals(BigInteger.valueOf(expected), sales.getLastDay().getItems());
+            assertEquals(BigInteger.valueOf(expected / 2), sales.getLastHour().getOrders());
+        }
+
+        provider.close();
+    }
+
+    @Test
+    public void testOrderSubmittedAgainIsMadeOnce() throws Exception {
+        VendingmachineProvider provider = new VendingmachineProvider();
+        provider.setConcurrentOrders(true);
+        provider.onSessionInitiated(mockSession());
+
+        MakeOrderInput order = new MakeOrderInputBuilder().setItemtype(Sandwich.class).setNumberofitems(3L)
+                .setClientOrderId("order-1").build();
+        assertTrue(provider.makeOrder(order).get(5, TimeUnit.SECONDS).isSuccessful());
+        assertTrue(provider.makeOrder(order).get(5, TimeUnit.SECONDS).isSuccessful());
+        assertEquals(Long.valueOf(1), provider.getOrdersMade());
+        assertEquals(Long.valueOf(1), provider.getDuplicateOrders());
+
+        // the batch shares the identifiers, its order-1 takes nothing out of stock either
+        List<Order> orders = new ArrayList<>();
+        orders.add(new OrderBuilder().setClientOrderId("order-1").setItemtype(Sandwich.class).setNumberofitems(3L).build());
+        orders.add(new OrderBuilder().setClientOrderId("order-2").setItemtype(Sandwich.class).setNumberofitems(3L).build());
+        orders.add(new OrderBuilder().setClientOrderId("order-2").setItemtype(Sandwich.class).setNumberofitems(3L).build());
+        List<OrderResult> results = provider.makeOrders(new MakeOrdersInputBuilder().setOrder(orders).build())
+                .get(5, TimeUnit.SECONDS).getResult().getOrderResult();
+        for (OrderResult result : results) {
+            assertTrue(result.isSuccess());
+        }
+        assertEquals(Long.valueOf(2), provider.getOrdersMade());
+
+        // 10 sandwiches in stock, 6 taken
+        MakeOrderInput sandwiches = new MakeOrderInputBuilder().setItemtype(Sandwich.class).setNumberofitems(3L).build();
+        assertTrue(provider.makeOrder(sandwiches).get(5, TimeUnit.SECONDS).isSuccessful());
+        assertFalse(provider.makeOrder(sandwiches).get(5, TimeUnit.SECONDS).isSuccessful());
+
+        provider.close();
+    }
+
+    @Test
+    public void testOrderDeadlines() throws Exception {
+        final AtomicBoolean stalled = new AtomicBoolean(true);
+        final List<SettableFuture<Void>> dispenses = new CopyOnWriteArrayList<>();
+        VendingmachineProvider provider = new VendingmachineProvider();
+        provider.setConcurrentOrders(true);
+        provider.setMaxOrdersInFlight(1);
+        provider.setOrderQueueCapacity(4);
+        provider.setShutdownTimeout(100);
+        provider.setDispenseScheduler(new DispenseScheduler() {
+            @Override
+            public ListenableFuture<Void> dispense(final MachineContext machine,
+                    final Class<? extends VendingProducts> product, final long items) {
+                if (!stalled.get()) {
+                    return Futures.immediateFuture(null);
+                }
+                SettableFuture<Void> dispensed = SettableFuture.create();
+                dispenses.add(dispensed);
+                return dispensed;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        provider.onSessionInitiated(mockSession());
+
+        // the deadline is a start-by deadline, a dispense under way is not interrupted
+        MakeOrderInput water = new MakeOrderInputBuilder().setItemtype(Water.class).setNumberofitems(1L).build();
+        Future<RpcResult<Void>> dispensing = provider.makeOrder(new MakeOrderInputBuilder(water).setDeadline(50L).build());
+
+        // an order waiting for the machine past its deadline is turned down and never takes its items
+        MakeOrderInput threeWaters = new MakeOrderInputBuilder().setItemtype(Water.class).setNumberofitems(3L).build();
+        RpcResult<Void> expired = provider.makeOrder(new MakeOrderInputBuilder(threeWaters).setDeadline(50L).build())
+                .get(5, TimeUnit.SECONDS);
+        assertFalse(expired.isSuccessful());
+        assertEquals("deadline-expired", expired.getErrors().iterator().next().getApplicationTag());
+        assertEquals(Long.valueOf(1), provider.getRejectedDeadlineExpired());
+
+        assertFalse(dispensing.isDone());
+        dispenses.get(0).set(null);
+        assertTrue(dispensing.get(5, TimeUnit.SECONDS).isSuccessful());
+
+        stalled.set(false);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(provider.makeOrder(threeWaters).get(5, TimeUnit.SECONDS).isSuccessful());
+        }
+        assertFalse(provider.makeOrder(water).get(5, TimeUnit.SECONDS).isSuccessful());
+
+        // closing turns down the orders it cannot wait for as not made, whenever their dispense completes
+        stalled.set(true);
+        MakeOrderInput juice = new MakeOrderInputBuilder().setItemtype(Juice.class).setNumberofitems(1L).build();
+        Future<RpcResult<Void>> pending = provider.makeOrder(juice);
+        assertFalse(pending.isDone());
+        long ordersMade = provider.getOrdersMade();
+        provider.close();
+        assertFalse(pending.get(5, TimeUnit.SECONDS).isSuccessful());
+        assertEquals(Long.valueOf(0), provider.getOrdersInFlight());
+        dispenses.get(1).set(null);
+        assertEquals(Long.valueOf(ordersMade), provider.getOrdersMade());
+    }
+
+    @Test
+    public void testImportAndExportInventory() throws Exception {
+        VendingmachineProvider provider = new VendingmachineProvider();
+        provider.setConcurrentOrders(true);
+        provider.setImportBatchSize(1);
+        provider.onSessionInitiated(mockSession());
+
+        File file = folder.newFile();
+        Files.write(file.toPath(), "m1,water,2\nm1,juice,0\nm2,water,5\n".getBytes(StandardCharsets.UTF_8));
+        RpcResult<ImportInventoryOutput> imported = provider.importInventory(new ImportInventoryInputBuilder()
+                .setFilePath(file.getPath()).build()).get(5, TimeUnit.SECONDS);
+        assertTrue(imported.isSuccessful());
+        assertEquals(Long.valueOf(2), imported.getResult().getMachines());
+        assertEquals(Long.valueOf(3), imported.getResult().getSlots());
+        assertEquals(Long.valueOf(0), imported.getResult().getSkippedSlots());
+
+        MakeOrderInput water = new MakeOrderInputBuilder().setMachineId(new MachineId("m1"))
+                .setItemtype(Water.class).setNumberofitems(1L).build();
+        assertTrue(provider.makeOrder(water).get(5, TimeUnit.SECONDS).isSuccessful());
+        assertTrue(provider.makeOrder(water).get(5, TimeUnit.SECONDS).isSuccessful());
+        assertFalse(provider.makeOrder(water).get(5, TimeUnit.SECONDS).isSuccessful());
+
+        // a malformed file sets no stock, not even that of its valid lines
+        Files.write(file.toPath(), "m1,water,9\nm1,cola,9\n".getBytes(StandardCharsets.UTF_8));
+        RpcResult<ImportInventoryOutput> malformed = provider.importInventory(new ImportInventoryInputBuilder()
+                .setFilePath(file.getPath()).build()).get(5, TimeUnit.SECONDS);
+        assertFalse(malformed.isSuccessful());
+        assertEquals("invalid-value", malformed.getErrors().iterator().next().getTag());
+        assertFalse(provider.makeOrder(water).get(5, TimeUnit.SECONDS).isSuccessful());
+
+        File exported = new File(folder.getRoot(), "exported");
+        RpcResult<ExportInventoryOutput> export = provider.exportInventory(new ExportInventoryInputBuilder()
+                .setFilePath(exported.getPath()).setFormat(InventoryFormat.Binary).build()).get(5, TimeUnit.SECONDS);
+        assertTrue(export.isSuccessful());
+        final List<String> slots = new ArrayList<>();
+        InventoryFile.read(exported, InventoryFormat.Binary, new InventoryFile.SlotHandler() {
+            @Override
+            public void slot(final String machineId, final Class<? extends VendingProducts> product, final long stock) {
+                if (product == Water.class) {
+                    slots.add(machineId + "=" + stock);
+                }
+            }
+        });
+        assertEquals(export.getResult().getMachines().longValue(), slots.size());
+        assertTrue(slots.contains("m1=0"));
+        assertTrue(slots.contains("m2=5"));
+
+        provider.close();
+    }
+
+    @Test
+    public void testOrdersAndRefillsAreAudited() throws Exception {
+        VendingmachineProvider provider = new VendingmachineProvider();
+        provider.setConcurrentOrders(true);
+        provider.setAuditDirectory(folder.getRoot().getPath());
+        provider.onSessionInitiated(mockSession());
+
+        MakeOrderInput water = new MakeOrderInputBuilder().setItemtype(Water.class).setNumberofitems(2L).build();
+        assertTrue(provider.makeOrder(water).get(5, TimeUnit.SECONDS).isSuccessful());
+        RefullItemInput refill = new RefullItemInputBuilder().setQuantityofproductprovide(10L).build();
+        assertTrue(provider.refullItem(refill).get(5, TimeUnit.SECONDS).isSuccessful());
+        provider.close();
+
+        final List<String> events = new ArrayList<>();
+        AuditTrail.read(new File(folder.getRoot(), AuditTrail.FILE_NAME), new AuditTrail.EventHandler() {
+            @Override
+            public void event(final long timeMillis, final AuditTrail.EventType type, final String machineId,
+                    final Class<? extends VendingProducts> product, final long items) {
+                if (product == Water.class) {
+                    events.add(type + " " + machineId + " " + items);
+                }
+            }
+        });
+        assertEquals(2, events.size());
+        assertEquals("ORDER_MADE default 2", events.get(0));
+        assertEquals("REFILLED default 2", events.get(1));
+        assertEquals(Long.valueOf(0), provider.getAuditEventsDropped());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testConfigurationReadOutlivesItsTransaction() throws Exception {
+        BindingAwareBroker.ProviderContext session = mockSession();
+        DataBroker dataBroker = session.getSALService(DataBroker.class);
+        SettableFuture<Optional<Vendingmachine>> read = SettableFuture.create();
+        ReadOnlyTransaction readTx = mock(ReadOnlyTransaction.class);
+        when(readTx.read(eq(LogicalDatastoreType.CONFIGURATION), eq(VendingmachineProvider.VENDINGMACHINE_IID)))
+                .thenReturn(Futures.makeChecked(read, new Function<Exception, ReadFailedException>() {
+                    @Override
+                    public ReadFailedException apply(final Exception e) {
+                        return new ReadFailedException("read failed", e);
+                    }
+                }));
+        when(dataBroker.newReadOnlyTransaction()).thenReturn(readTx);
+
+        VendingmachineProvider provider = new VendingmachineProvider();
+        provider.onSessionInitiated(session);
+
+        // the transaction stays open while its read is pending
+        verify(readTx, never()).close();
+        read.set(Optional.<Vendingmachine>absent());
+        verify(readTx).close();
+        verify(dataBroker.newWriteOnlyTransaction()).put(eq(LogicalDatastoreType.CONFIGURATION),
+                eq(VendingmachineProvider.VENDINGMACHINE_IID), any(Vendingmachine.class));
+
+        provider.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    static BindingAwareBroker.ProviderContext mockSession() {
+        WriteTransaction tx = mock(WriteTransaction.class);
+        when(tx.submit()).thenReturn(Futures.<Void, TransactionCommitFailedException>immediateCheckedFuture(null));
+
+        ReadOnlyTransaction readTx = mock(ReadOnlyTransaction.class);
+        when(readTx.read(any(LogicalDatastoreType.class), any(InstanceIdentifier.class)))
+                .thenReturn(Futures.immediateCheckedFuture(Optional.absent()));
+
+        DataBroker dataBroker = mock(DataBroker.class);
+        when(dataBroker.newWriteOnlyTransaction()).thenReturn(tx);
+        when(dataBroker.newReadOnlyTransaction()).thenReturn(readTx);
+        when(dataBroker.registerDataChangeListener(any(LogicalDatastoreType.class), any(InstanceIdentifier.class),
+                any(DataChangeListener.class), any(DataChangeScope.class))).thenReturn(mock(ListenerRegistration.class));
+
+        BindingAwareBroker.ProviderContext session = mock(BindingAwareBroker.ProviderContext.class);
+        when(session.getSALService(DataBroker.class)).thenReturn(dataBroker);
+        when(session.getSALService(NotificationProviderService.class)).thenReturn(mock(NotificationProviderService.class));
+        when(session.addRpcImplementation(eq(VendingmachineService.class), any(VendingmachineService.class)))
+                .thenReturn(mock(BindingAwareBroker.RpcRegistration.class));
+        return session;
+    }
 }